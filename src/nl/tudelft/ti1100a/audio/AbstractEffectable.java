@@ -2,6 +2,7 @@ package nl.tudelft.ti1100a.audio;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import ddf.minim.AudioEffect;
 import ddf.minim.Effectable;
@@ -17,10 +18,12 @@ public abstract class AbstractEffectable implements Effectable {
 	
 	private static class Effect {
 		public boolean enabled;
+		public boolean optional;
 		public AudioEffect effect;
 		public Effect(AudioEffect effect){
 			this.effect = effect;
 			enabled = true;
+			optional = false;
 		}
 		@Override
 		public boolean equals(Object x){
@@ -35,25 +38,29 @@ public abstract class AbstractEffectable implements Effectable {
 		}
 	}
 	
+	// Changed by the application while the audio thread (and, for a frozen loop, the freezer) iterates over it.
 	protected List<Effect> effects;
 	
 	public AbstractEffectable(){
-		effects = new ArrayList<Effect>();
+		effects = new CopyOnWriteArrayList<Effect>();
 	}
 
 	/** {@inheritDoc} */
 	@Override public void addEffect(AudioEffect effect) {
 		effects.add(new Effect(effect));
+		effectsChanged();
 	}
 
 	/** {@inheritDoc} */
 	@Override public void clearEffects() {
 		effects.clear();
+		effectsChanged();
 	}
 
 	/** {@inheritDoc} */
 	@Override public void enableEffect(int i) {
 		effects.get(i).enabled = true;
+		effectsChanged();
 	}
 
 	/** {@inheritDoc} */
@@ -65,6 +72,7 @@ public abstract class AbstractEffectable implements Effectable {
 	/** {@inheritDoc} */
 	@Override public void disableEffect(int i) {
 		effects.get(i).enabled = false;
+		effectsChanged();
 	}
 
 	/** {@inheritDoc} */
@@ -81,11 +89,13 @@ public abstract class AbstractEffectable implements Effectable {
 	/** {@inheritDoc} */
 	@Override public void effects() {
 		for(Effect e : effects) e.enabled = true;
+		effectsChanged();
 	}
 
 	/** {@inheritDoc} */
 	@Override public void noEffects() {
 		for(Effect e : effects) e.enabled = false;
+		effectsChanged();
 	}
 
 	/** {@inheritDoc} */
@@ -111,14 +121,56 @@ public abstract class AbstractEffectable implements Effectable {
 		return effects.get(i).enabled;
 	}
 
+	/**
+	 * Marks an effect as optional or not.
+	 * 
+	 * Optional effects may be bypassed when there's not enough time to render everything, see {@link LoadGovernor}.
+	 * 
+	 * @param effect The effect.
+	 * @param optional Whether the effect is optional.
+	 */
+	public void setOptional(AudioEffect effect, boolean optional) {
+		for(Effect e : effects) if (e.equals(effect)) e.optional = optional;
+	}
+	
+	/**
+	 * Returns whether an effect is marked as optional.
+	 * 
+	 * @param effect The effect.
+	 */
+	public boolean isOptional(AudioEffect effect) {
+		for(Effect e : effects) if (e.equals(effect)) return e.optional;
+		return false;
+	}
+	
 	/** {@inheritDoc} */
 	@Override public void removeEffect(AudioEffect effect) {
 		effects.remove(effect);
+		effectsChanged();
 	}
 
 	/** {@inheritDoc} */
 	@Override public AudioEffect removeEffect(int i) {
-		return effects.remove(i).effect;
+		AudioEffect effect = effects.remove(i).effect;
+		effectsChanged();
+		return effect;
+	}
+	
+	/**
+	 * Returns the effects that are currently enabled, in order.
+	 * 
+	 * The returned list does not change when effects are added, removed, enabled or disabled afterwards.
+	 */
+	protected List<AudioEffect> enabledEffects() {
+		List<AudioEffect> chain = new ArrayList<AudioEffect>();
+		for(Effect e : effects) if (e.enabled) chain.add(e.effect);
+		return chain;
+	}
+	
+	/**
+	 * Called after an effect is added, removed, enabled or disabled.
+	 */
+	protected void effectsChanged() {
 	}
 	
 	/**
@@ -127,7 +179,17 @@ public abstract class AbstractEffectable implements Effectable {
 	 * @param data The audio data to process.
 	 */
 	protected void process(float[] data){
-		for(Effect e : effects) if (e.enabled) e.effect.process(data);
+		process(data, false);
+	}
+	
+	/**
+	 * Apply all enabled effects to the supplied data, optionally skipping the optional effects.
+	 * 
+	 * @param data The audio data to process.
+	 * @param bypassOptional Whether to skip the effects marked as optional.
+	 */
+	protected void process(float[] data, boolean bypassOptional){
+		for(Effect e : effects) if (e.enabled && !(bypassOptional && e.optional)) e.effect.process(data);
 	}
 	
 	/**
@@ -137,7 +199,18 @@ public abstract class AbstractEffectable implements Effectable {
 	 * @param right The right channel of the audio data to process.
 	 */
 	protected void process(float[] left, float[] right){
-		for(Effect e : effects) if (e.enabled) e.effect.process(left,right);
+		process(left, right, false);
+	}
+	
+	/**
+	 * Apply all enabled effects to the supplied data, optionally skipping the optional effects.
+	 * 
+	 * @param left The left channel of the audio data to process.
+	 * @param right The right channel of the audio data to process.
+	 * @param bypassOptional Whether to skip the effects marked as optional.
+	 */
+	protected void process(float[] left, float[] right, boolean bypassOptional){
+		for(Effect e : effects) if (e.enabled && !(bypassOptional && e.optional)) e.effect.process(left,right);
 	}
 	
 }
@@ -0,0 +1,135 @@
+package nl.tudelft.ti1100a.audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import ddf.minim.AudioListener;
+
+/**
+ * An AudioTap copies the audio passing through it into a preallocated ring buffer, to be read by another thread.
+ *
+ * The audio thread only copies the samples into the ring; it never blocks and never allocates.
+ * One thread (for example a {@link SpectrumAnalyzer}) can read the samples at its own pace.
+ * If the reader can't keep up, the samples that don't fit in the ring are dropped and counted.
+ *
+ * An AudioTap can be attached to a {@link LoopMixer.Loop} or to the {@link LoopMixer} itself using {@code addTap(...)}.
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see SpectrumAnalyzer
+ */
+public class AudioTap implements AudioListener {
+
+	private final float[] left;
+	private final float[] right;
+	private final int mask;
+
+	private final AtomicLong written;
+	private final AtomicLong read;
+	private final AtomicLong dropped;
+
+	/**
+	 * Creates a new AudioTap.
+	 *
+	 * @param capacity The minimum number of samples (per channel) the ring can hold. It is rounded up to a power of two.
+	 */
+	public AudioTap(int capacity) {
+		int size = 1;
+		while (size < capacity) size <<= 1;
+		left = new float[size];
+		right = new float[size];
+		mask = size - 1;
+		written = new AtomicLong();
+		read = new AtomicLong();
+		dropped = new AtomicLong();
+	}
+
+	/** {@inheritDoc} */
+	@Override public void samples(float[] samples) {
+		samples(samples, samples);
+	}
+
+	/** {@inheritDoc} */
+	@Override public void samples(float[] l, float[] r) {
+		long w = written.get();
+		int n = l.length;
+		int free = left.length - (int) (w - read.get());
+		if (n > free){
+			dropped.addAndGet(n - free);
+			n = free;
+		}
+		if (n <= 0) return;
+		int start = (int) (w & mask);
+		int first = Math.min(n, left.length - start);
+		System.arraycopy(l, 0, left, start, first);
+		System.arraycopy(r, 0, right, start, first);
+		if (first < n){
+			System.arraycopy(l, first, left, 0, n - first);
+			System.arraycopy(r, first, right, 0, n - first);
+		}
+		written.lazySet(w + n);
+	}
+
+	/**
+	 * Returns the number of samples (per channel) that can be read right now.
+	 */
+	public int available() {
+		return (int) (written.get() - read.get());
+	}
+
+	/**
+	 * Reads samples from the ring.
+	 *
+	 * Only one thread may read from an AudioTap.
+	 *
+	 * @param l The array to store the left channel in.
+	 * @param r The array to store the right channel in.
+	 * @param offset The index in both arrays to store the first sample.
+	 * @param count The maximum number of samples to read.
+	 * @return The number of samples actually read.
+	 */
+	public int read(float[] l, float[] r, int offset, int count) {
+		long p = read.get();
+		int n = Math.min(count, (int) (written.get() - p));
+		if (n <= 0) return 0;
+		int start = (int) (p & mask);
+		int first = Math.min(n, left.length - start);
+		System.arraycopy(left, start, l, offset, first);
+		System.arraycopy(right, start, r, offset, first);
+		if (first < n){
+			System.arraycopy(left, 0, l, offset + first, n - first);
+			System.arraycopy(right, 0, r, offset + first, n - first);
+		}
+		read.lazySet(p + n);
+		return n;
+	}
+
+	/**
+	 * Discards all samples that are currently available.
+	 *
+	 * Only the reading thread may call this method.
+	 */
+	public void skip() {
+		read.lazySet(written.get());
+	}
+
+	/**
+	 * Returns the number of samples (per channel) that fit in the ring.
+	 */
+	public int capacity() {
+		return left.length;
+	}
+
+	/**
+	 * Returns the total number of samples (per channel) that were written to the ring.
+	 */
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	/**
+	 * Returns the total number of samples (per channel) that were dropped because the ring was full.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+}
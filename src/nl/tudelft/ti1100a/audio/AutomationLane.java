@@ -0,0 +1,140 @@
+package nl.tudelft.ti1100a.audio;
+
+/**
+ * An AutomationLane changes a parameter of a {@link LoopMixer.Loop} smoothly over time, while the audio is generated.
+ *
+ * Changes are submitted as {@link Envelope}s, which the audio thread evaluates for every block of samples.
+ * Within a block, the parameter is interpolated linearly for every sample, so there is no zipper noise.
+ * Submitting an envelope doesn't block, and the application doesn't have to do anything while it plays.
+ *
+ * Every loop has a lane for its volume ({@link LoopMixer.Loop#getVolumeLane()}) and for its pan ({@link LoopMixer.Loop#getPanLane()}).
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see Envelope
+ */
+public class AutomationLane {
+
+	/**
+	 * The time, in seconds, over which {@link #set(float)} changes the value.
+	 */
+	public static final float SMOOTHING = 0.01f;
+
+	private static final class Command {
+		final Envelope envelope;
+		final long startFrame;
+		Command(Envelope envelope, long startFrame) {
+			this.envelope = envelope;
+			this.startFrame = startFrame;
+		}
+	}
+
+	private final float min;
+	private final float max;
+
+	private volatile Command pending;
+	private volatile float current;
+
+	// Owned by the audio thread.
+	private Command applied;
+	private Envelope envelope;
+	private long envelopeStart;
+	private float envelopeFrom;
+	private float value;
+	float blockStart;
+	float blockEnd;
+
+	AutomationLane(float value, float min, float max) {
+		this.min = min;
+		this.max = max;
+		this.value = current = blockStart = blockEnd = value;
+	}
+
+	/**
+	 * Changes the value, smoothly over {@value #SMOOTHING} seconds.
+	 *
+	 * @param value The new value.
+	 */
+	public void set(float value) {
+		play(new Envelope().rampTo(value, SMOOTHING));
+	}
+
+	/**
+	 * Changes the value linearly, starting now.
+	 *
+	 * @param value The new value.
+	 * @param seconds The duration of the change.
+	 */
+	public void rampTo(float value, float seconds) {
+		play(new Envelope().rampTo(value, seconds));
+	}
+
+	/**
+	 * Plays an envelope, starting now. Replaces the envelope that was playing, if any.
+	 *
+	 * Changes to the {@link Envelope} after calling this method have no effect.
+	 *
+	 * @param envelope The envelope to play.
+	 */
+	public void play(Envelope envelope) {
+		play(envelope, -1);
+	}
+
+	/**
+	 * Plays an envelope, starting at the specified sample frame of the loop. Replaces the envelope that was playing or waiting, if any.
+	 *
+	 * The envelope starts at the first block that starts at or after the specified frame.
+	 * If the frame has already passed, the envelope starts right away, as if it started at that frame.
+	 *
+	 * @param envelope The envelope to play.
+	 * @param startFrame The sample frame, as in {@link TransportSnapshot#getFrame()}, at which the envelope starts.
+	 */
+	public void play(Envelope envelope, long startFrame) {
+		pending = new Command(envelope.copy(), startFrame);
+	}
+
+	/**
+	 * Stops the envelope that is playing or waiting, if any, keeping the current value.
+	 */
+	public void stop() {
+		pending = new Command(null, -1);
+	}
+
+	/**
+	 * Returns the value at the end of the last block that was generated.
+	 */
+	public float getValue() {
+		return current;
+	}
+
+	/**
+	 * Evaluates the lane for a block of samples, and stores the values at its start and end in {@link #blockStart} and {@link #blockEnd}.
+	 * Called by the audio thread.
+	 *
+	 * @param frame The sample frame at the start of the block.
+	 * @param samples The length of the block.
+	 * @param sampleRate The sample rate.
+	 */
+	void block(long frame, int samples, float sampleRate) {
+		Command c = pending;
+		if (c != applied && (c.startFrame < 0 || c.startFrame <= frame)){
+			applied = c;
+			envelope = c.envelope;
+			envelopeStart = c.startFrame < 0 ? frame : c.startFrame;
+			envelopeFrom = value;
+		}
+		blockStart = value;
+		if (envelope != null){
+			blockStart = evaluate(frame, sampleRate);
+			value = evaluate(frame + samples, sampleRate);
+			if ((frame + samples - envelopeStart) / sampleRate >= envelope.getDuration()) envelope = null;
+		}
+		blockEnd = value;
+		current = value;
+	}
+
+	private float evaluate(long frame, float sampleRate) {
+		float v = envelope.getValue((frame - envelopeStart) / sampleRate, envelopeFrom);
+		return v < min ? min : v > max ? max : v;
+	}
+
+}
@@ -2,6 +2,7 @@ package nl.tudelft.ti1100a.audio;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import ddf.minim.AudioOutput;
 import ddf.minim.AudioSignal;
@@ -12,17 +13,38 @@ import ddf.minim.Minim;
  * 
  * @author Mara Bos (m-ou.se@m-ou.se)
  */
-public class ClickTrack implements Rhythm {
+public class ClickTrack implements PredictableRhythm {
 	
 	List<RhythmListener> rhythmListeners;
 	
 	int position;
+	// The part of a sample the position lost to rounding when the tempo changed, so the phase doesn't drift while the tempo keeps changing.
+	private double positionFraction;
 	int duration;
 	int beats;
 	final float sampleRate;
 	boolean muted;
 	boolean running;
 	
+	private static final int AUTOMATION_BLOCK = 64;
+	private final AtomicReference<Automation> automation = new AtomicReference<Automation>();
+	// Only used by the audio thread.
+	private Automation applied;
+	private long automationTime;
+	private int breakpoint;
+	private boolean passedBreakpoint;
+	
+	private final TransportState transport;
+	private long frames;
+	// Set by the application, or NaN to use the latency of the line that is heard.
+	private volatile float outputLatency = Float.NaN;
+	private volatile float lineLatency;
+	private final ThreadLocal<TransportSnapshot> snapshots = new ThreadLocal<TransportSnapshot>() {
+		@Override protected TransportSnapshot initialValue() {
+			return new TransportSnapshot();
+		}
+	};
+	
 	/**
 	 * The Minim interface used by this ClickTrack.
 	 */
@@ -30,6 +52,11 @@ public class ClickTrack implements Rhythm {
 	
 	private final AudioOutput out;
 	
+	/**
+	 * The signal that advances the ClickTrack and produces its clicks.
+	 */
+	final AudioSignal clock;
+	
 	/**
 	 * Creates a new ClickTrack.
 	 * 
@@ -52,6 +79,23 @@ public class ClickTrack implements Rhythm {
 	 * @param beatsPerMeasure The number of beats per measure.
 	 */
 	public ClickTrack(Minim minim, int sampleRate, int measureDuration, int beatsPerMeasure) {
+		this(minim, true, sampleRate, measureDuration, beatsPerMeasure);
+	}
+	
+	/**
+	 * Creates a new ClickTrack without an audio output.
+	 * 
+	 * The ClickTrack does not advance by itself; it is driven by the {@link StreamOutput} of a {@link LoopMixer} that uses it.
+	 * 
+	 * @param sampleRate The sample rate.
+	 * @param measureDuration The duration, in samples, of one measure.
+	 * @param beatsPerMeasure The number of beats per measure.
+	 */
+	public ClickTrack(int sampleRate, int measureDuration, int beatsPerMeasure) {
+		this(null, false, sampleRate, measureDuration, beatsPerMeasure);
+	}
+	
+	private ClickTrack(Minim minim, boolean output, int sampleRate, int measureDuration, int beatsPerMeasure) {
 		this.minim = minim;
 		this.duration = measureDuration;
 		this.beats = beatsPerMeasure;
@@ -62,15 +106,26 @@ public class ClickTrack implements Rhythm {
 		
 		rhythmListeners = new ArrayList<RhythmListener>();
 		
-		out = minim.getLineOut(Minim.MONO, sampleRate / 45, sampleRate);
+		transport = new TransportState();
+		transport.publish(0, System.nanoTime(), false, 0, measureDuration, measureDuration, beatsPerMeasure);
 		
-		out.addSignal(new AudioSignal() {
+		clock = new AudioSignal() {
 			@Override public void generate(float[] data) {
+				long time = System.nanoTime();
+				if (passedBreakpoint){
+					// Loops follow the tempo a buffer at a time, so they get a bit ahead or behind during a ramp. This lines them up again.
+					passedBreakpoint = false;
+					for(RhythmListener l : rhythmListeners) l.positionChanged();
+				}
+				bufferStarted(time);
+				transport.publish(frames, time, running, position, duration, duration, beats);
+				frames += data.length;
 				if (!running){
 					for(int i = 0; i < data.length; i++) data[i] = 0;
 					return;
 				}
 				for(int i = 0; i < data.length; i++){
+					if (i % AUTOMATION_BLOCK == 0) applyAutomation(Math.min(AUTOMATION_BLOCK, data.length - i));
 					if (position == 0){
 						for(RhythmListener l : rhythmListeners) l.measure();
 					} else if (position % (duration/beats) == 0){
@@ -98,7 +153,136 @@ public class ClickTrack implements Rhythm {
 				// AudioOutput out is set to mono, so it'll never call this method.
 				assert(false);
 			}
-		});
+		};
+		
+		if (output){
+			out = minim.getLineOut(Minim.MONO, sampleRate / 45, sampleRate);
+			out.addSignal(clock);
+			lineLatency = out.bufferSize() / (float) sampleRate;
+		} else {
+			out = null;
+		}
+	}
+	
+	/**
+	 * A running tempo automation, published to the audio thread as a whole.
+	 */
+	private static final class Automation {
+		final TempoAutomation curve;
+		final int startDuration;
+		Automation(TempoAutomation curve, int startDuration) {
+			this.curve = curve;
+			this.startDuration = startDuration;
+		}
+	}
+	
+	/**
+	 * Applies the tempo automation, if any. Called by the audio thread for every block of samples.
+	 */
+	private void applyAutomation(int samples) {
+		Automation a = automation.get();
+		if (a == null) return;
+		if (a != applied){
+			applied = a;
+			automationTime = 0;
+			breakpoint = 0;
+		}
+		float time = automationTime / sampleRate;
+		int b = a.curve.breakpointAt(time);
+		if (b != breakpoint){
+			breakpoint = b;
+			passedBreakpoint = true;
+		}
+		// A whole number of samples per beat, so no beat is triggered twice at the end of a measure.
+		int beat = Math.max(1, (int) (60 / a.curve.getBpm(time) * sampleRate));
+		rescale(beat * beats);
+		automationTime += samples;
+		// Only finish if no other automation was started in the meantime.
+		if (time >= a.curve.getDuration() && automation.compareAndSet(a, null)){
+			float factor = a.startDuration / (float) duration;
+			for(RhythmListener l : rhythmListeners) l.tempoChanged(factor);
+		}
+	}
+	
+	/**
+	 * Changes the duration of a measure, keeping the position at the same place in the measure, without notifying the listeners.
+	 * 
+	 * @param newDuration The new duration, in samples, of one measure.
+	 */
+	void rescale(int newDuration) {
+		if (newDuration == duration) return;
+		int oldBeat = duration / beats;
+		int newBeat = newDuration / beats;
+		int beat = Math.min(position / oldBeat, beats - 1);
+		double exact = (position + positionFraction) * newDuration / duration;
+		long p = (long) exact;
+		// Stay within the same beat, so rounding doesn't make us skip or repeat the start of a beat.
+		long start = beat * (long) newBeat;
+		long end = beat == beats - 1 ? newDuration : start + newBeat;
+		if (position == beat * oldBeat){
+			p = start;
+			positionFraction = 0;
+		} else if (p <= start || p > end - 1){
+			p = Math.max(start + 1, Math.min(p, end - 1));
+			positionFraction = 0;
+		} else {
+			positionFraction = exact - p;
+		}
+		duration = newDuration;
+		position = (int) p;
+	}
+	
+	/**
+	 * Starts changing the tempo automatically.
+	 * 
+	 * The automation is evaluated while the audio is generated, every {@value #AUTOMATION_BLOCK} samples.
+	 * Loops follow the tempo continuously. The {@link RhythmListener}s are only notified once, when the automation is finished.
+	 * At the start of the buffer after each breakpoint they also get {@link RhythmListener#positionChanged()}, to line them up with the click again.
+	 * The automation only advances while the ClickTrack is playing.
+	 * 
+	 * Changes to the {@link TempoAutomation} after calling this method have no effect.
+	 * 
+	 * @param automation The automation to follow, starting now. Replaces any automation that was already running.
+	 */
+	public void automate(TempoAutomation automation) {
+		this.automation.set(new Automation(automation.copy(), duration));
+	}
+	
+	/**
+	 * Stops the automation of the tempo, keeping the current tempo.
+	 */
+	public void stopAutomation() {
+		Automation a = automation.getAndSet(null);
+		if (a == null) return;
+		float factor = a.startDuration / (float) duration;
+		for(RhythmListener l : rhythmListeners) l.tempoChanged(factor);
+	}
+	
+	/**
+	 * Returns whether the tempo is currently automated.
+	 */
+	public boolean isAutomated() {
+		return automation.get() != null;
+	}
+	
+	/**
+	 * Called by the audio thread before every buffer is generated.
+	 * 
+	 * @param time The value of {@link System#nanoTime()} at the start of the buffer.
+	 */
+	protected void bufferStarted(long time) {
+	}
+	
+	/**
+	 * Copies the transport state of the last buffer, without locking.
+	 * 
+	 * Unlike the separate getters, all values in the snapshot belong together, so this is the way to poll the ClickTrack from another thread.
+	 * 
+	 * @param into The snapshot to copy the state into.
+	 * @return The snapshot that was passed in.
+	 */
+	public TransportSnapshot getTransport(TransportSnapshot into) {
+		return transport.read(into, sampleRate);
 	}
 	
 	/** {@inheritDoc} */
@@ -172,12 +356,14 @@ public class ClickTrack implements Rhythm {
 	/**
 	 * Changes the tempo.
 	 * 
+	 * Stops the automation of the tempo, if any.
+	 * 
 	 * @param duration The new duration, in samples, of one measure.
 	 */
 	public void setExactMeasureDuration(int duration) {
+		automation.set(null);
 		float factor = this.duration/(float)duration;
-		this.duration = duration;
-		this.position /= factor;
+		rescale(duration);
 		for(RhythmListener l : rhythmListeners) l.tempoChanged(factor);
 	}
 	
@@ -242,6 +428,117 @@ public class ClickTrack implements Rhythm {
 		return running;
 	}
 	
+	/**
+	 * Returns whether the ClickTrack plays through its own audio output.
+	 */
+	boolean hasOutput() {
+		return out != null;
+	}
+	
+	/**
+	 * Returns the time, in seconds, between generating a sample and hearing it.
+	 * 
+	 * Unless it was set with {@link #setOutputLatency(float)}, this is the duration of one buffer of the audio output
+	 * of the {@link LoopMixer} that uses this ClickTrack, or of the ClickTrack itself if no LoopMixer was created yet.
+	 */
+	@Override public float getOutputLatency() {
+		float l = outputLatency;
+		return Float.isNaN(l) ? lineLatency : l;
+	}
+	
+	/**
+	 * Changes the output latency used for the predictions.
+	 * 
+	 * Set it to include the latency of the audio device, if known.
+	 * 
+	 * @param seconds The time, in seconds, between generating a sample and hearing it.
+	 */
+	public void setOutputLatency(float seconds) {
+		outputLatency = seconds;
+	}
+	
+	/**
+	 * Sets the latency of the audio output that is actually heard. Called by a {@link LoopMixer} that uses this ClickTrack.
+	 */
+	void setLineLatency(float seconds) {
+		lineLatency = seconds;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The predictions don't allocate anything after their first call on a thread, so they can be used from an audio thread too.
+	 */
+	@Override public int getAudibleBeat() {
+		TransportSnapshot t = getTransport(snapshots.get());
+		long audible = audiblePosition(t, System.nanoTime());
+		int d = t.getExactMeasureDuration();
+		long measure = floorDiv(audible, d);
+		return Math.min((int) (audible - measure * d) / (d / beats), beats - 1);
+	}
+	
+	/** {@inheritDoc} */
+	@Override public long getBeatFrame(int n) {
+		return predict(n, false, false);
+	}
+	
+	/** {@inheritDoc} */
+	@Override public long getBeatTime(int n) {
+		return predict(n, false, true);
+	}
+	
+	/** {@inheritDoc} */
+	@Override public long getMeasureFrame(int n) {
+		return predict(n, true, false);
+	}
+	
+	/** {@inheritDoc} */
+	@Override public long getMeasureTime(int n) {
+		return predict(n, true, true);
+	}
+	
+	/**
+	 * Returns the position that can be heard at the specified time, in samples since the start of the measure of the snapshot.
+	 */
+	private long audiblePosition(TransportSnapshot t, long now) {
+		long elapsed = t.isPlaying() ? (long) ((now - t.getTime()) * 1e-9 * sampleRate) : 0;
+		return t.getExactPosition() + elapsed - (long) (getOutputLatency() * sampleRate);
+	}
+	
+	/**
+	 * Predicts when a coming beat or measure will be heard.
+	 * 
+	 * @param n Which beat or measure, counting from the next one.
+	 * @param measure Whether to predict a measure instead of a beat.
+	 * @param nanos Whether to return the time as given by {@link System#nanoTime()} instead of the sample frame.
+	 */
+	private long predict(int n, boolean measure, boolean nanos) {
+		TransportSnapshot t = getTransport(snapshots.get());
+		long now = System.nanoTime();
+		long audible = audiblePosition(t, now);
+		int d = t.getExactMeasureDuration();
+		int beat = d / beats;
+		long m = floorDiv(audible, d);
+		long target; // In samples since the start of the measure of the snapshot.
+		if (measure){
+			target = (m + 1 + n) * d;
+		} else {
+			long b = m * beats + Math.min((int) (audible - m * d) / beat, beats - 1) + 1 + n;
+			long bm = floorDiv(b, beats);
+			target = bm * d + (b - bm * beats) * beat;
+		}
+		long ahead = target - t.getExactPosition(); // In samples after the start of the buffer of the snapshot.
+		if (!nanos) return t.getFrame() + ahead;
+		long start = t.isPlaying() ? t.getTime() : now;
+		return start + (long) ((ahead / (double) sampleRate + getOutputLatency()) * 1e9);
+	}
+	
+	private static long floorDiv(long a, long b) {
+		long q = a / b;
+		return q * b > a ? q - 1 : q;
+	}
+	
+	
 	/**
 	 * Returns whether the ClickTrack is muted or not.
 	 */
@@ -269,7 +566,7 @@ public class ClickTrack implements Rhythm {
 	 * Do not use the ClickTrack after it's closed.
 	 */
 	public void close() {
-		out.close();
+		if (out != null) out.close();
 	}
 
 }
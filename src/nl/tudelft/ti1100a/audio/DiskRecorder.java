@@ -0,0 +1,340 @@
+package nl.tudelft.ti1100a.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import ddf.minim.Recordable;
+
+/**
+ * A DiskRecorder records audio to WAV files on its own thread.
+ *
+ * The audio thread only copies the samples into the ring buffer of an {@link AudioTap}, so slow disks can never cause dropouts.
+ * If the disk can't keep up and the ring fills up, the samples that don't fit are dropped and counted (see {@link #getDroppedCount()}).
+ * The ring is drained with large sequential writes through a {@link FileChannel}.
+ *
+ * Long recordings can be split into segments (see {@link #setSegmentDuration(float)}).
+ * The first segment is written to the specified file, the next ones to files with {@code -2}, {@code -3}, etc. appended to the name.
+ * A segment is also started when a WAV file would otherwise grow beyond 4 GB.
+ *
+ * Example, recording the master output of a {@link LoopMixer}:
+ *
+ * <pre>
+ * DiskRecorder recorder = new DiskRecorder(mixer, mixer.sampleRate(), new File("set.wav"));
+ * recorder.start();
+ * ...
+ * recorder.stop();
+ * </pre>
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see AudioTap
+ */
+public class DiskRecorder implements Runnable {
+
+	private static final int CHUNK = 16384;
+	private static final int HEADER_SIZE = 44;
+	private static final long MAX_DATA_SIZE = 0xffffffffL - HEADER_SIZE;
+
+	private final AudioTap tap;
+	private final Recordable source;
+	private final float sampleRate;
+	private final File file;
+
+	private int bitDepth;
+	private float segmentDuration;
+	// The bit depth of the current recording, which doesn't change until it's stopped.
+	private int depth;
+
+	private final float[] left;
+	private final float[] right;
+	private ByteBuffer bytes;
+
+	private FileChannel channel;
+	private long segmentFrames;
+	private long maxSegmentFrames;
+	private long droppedAtStart;
+
+	private volatile int segments;
+	private volatile long frames;
+	private volatile IOException error;
+	private volatile boolean running;
+	private Thread thread;
+
+	/**
+	 * Creates a new DiskRecorder that records from a {@link LoopMixer} or a {@link LoopMixer.Loop}.
+	 *
+	 * It attaches its own {@link AudioTap} with room for two seconds of audio when it's started, and removes it again when it's stopped.
+	 *
+	 * @param source What to record.
+	 * @param sampleRate The sample rate of the source.
+	 * @param file The file to record to.
+	 */
+	public DiskRecorder(Recordable source, float sampleRate, File file) {
+		this(new AudioTap((int) (sampleRate * 2)), source, sampleRate, file);
+	}
+
+	/**
+	 * Creates a new DiskRecorder that records everything that passes through an {@link AudioTap}.
+	 *
+	 * The tap has to be attached by the caller. Nothing else may read from it.
+	 *
+	 * @param tap The {@link AudioTap} to read the audio from.
+	 * @param sampleRate The sample rate of the tapped audio.
+	 * @param file The file to record to.
+	 */
+	public DiskRecorder(AudioTap tap, float sampleRate, File file) {
+		this(tap, null, sampleRate, file);
+	}
+
+	private DiskRecorder(AudioTap tap, Recordable source, float sampleRate, File file) {
+		this.tap = tap;
+		this.source = source;
+		this.sampleRate = sampleRate;
+		this.file = file;
+		bitDepth = 16;
+		segmentDuration = 0;
+		left = new float[CHUNK];
+		right = new float[CHUNK];
+	}
+
+	/**
+	 * Changes the number of bits per sample. Only has effect on the next call to {@link #start()}.
+	 *
+	 * @param bitDepth 16 or 24. (16 by default.)
+	 */
+	public void setBitDepth(int bitDepth) {
+		if (bitDepth != 16 && bitDepth != 24) throw new IllegalArgumentException("Bit depth must be 16 or 24");
+		this.bitDepth = bitDepth;
+	}
+
+	/**
+	 * Returns the number of bits per sample.
+	 */
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	/**
+	 * Changes the maximum duration of one file. Only has effect on the next call to {@link #start()}.
+	 *
+	 * @param seconds The duration, in seconds, after which a new file is started, or 0 to only start new files when they would exceed 4 GB. (0 by default.)
+	 */
+	public void setSegmentDuration(float seconds) {
+		segmentDuration = seconds;
+	}
+
+	/**
+	 * Returns the maximum duration of one file, in seconds, or 0 if there is none.
+	 */
+	public float getSegmentDuration() {
+		return segmentDuration;
+	}
+
+	/**
+	 * Starts recording on a new (daemon) thread.
+	 *
+	 * If the recorder is already running, nothing happens. Otherwise, the files of a previous recording are overwritten.
+	 *
+	 * @throws IOException If the first file could not be created.
+	 */
+	public synchronized void start() throws IOException {
+		if (running) return;
+		depth = bitDepth;
+		int blockAlign = 2 * depth / 8;
+		maxSegmentFrames = MAX_DATA_SIZE / blockAlign;
+		if (segmentDuration > 0) maxSegmentFrames = Math.min(maxSegmentFrames, Math.max(1, (long) (segmentDuration * sampleRate)));
+		bytes = ByteBuffer.allocateDirect(CHUNK * blockAlign).order(ByteOrder.LITTLE_ENDIAN);
+		segments = 0;
+		frames = 0;
+		error = null;
+		openSegment();
+		tap.skip();
+		droppedAtStart = tap.getDroppedCount();
+		if (source != null) source.addListener(tap);
+		running = true;
+		thread = new Thread(this, "DiskRecorder");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops recording, and waits until everything that was recorded so far is written and the file is closed.
+	 */
+	public synchronized void stop() {
+		if (!running) return;
+		if (source != null) source.removeListener(tap);
+		running = false;
+		boolean interrupted = false;
+		while (thread.isAlive()){
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		thread = null;
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Returns whether the recorder is currently running or not.
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Returns the number of samples (per channel) that were written to disk so far.
+	 */
+	public long getRecordedFrames() {
+		return frames;
+	}
+
+	/**
+	 * Returns the number of samples (per channel) that were dropped because the disk couldn't keep up.
+	 */
+	public long getDroppedCount() {
+		return tap.getDroppedCount() - droppedAtStart;
+	}
+
+	/**
+	 * Returns the number of files that were started so far.
+	 */
+	public int getSegmentCount() {
+		return segments;
+	}
+
+	/**
+	 * Returns the file of the specified segment.
+	 *
+	 * @param segment The index of the segment, starting at 0.
+	 */
+	public File getSegmentFile(int segment) {
+		if (segment == 0) return file;
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot <= 0) dot = name.length();
+		return new File(file.getParentFile(), name.substring(0, dot) + "-" + (segment + 1) + name.substring(dot));
+	}
+
+	/**
+	 * Returns the error that stopped the recording, or null if there was none.
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	/** Don't call this method directly, use {@link #start()}. */
+	@Override public void run() {
+		long chunkMillis = (long) (CHUNK / sampleRate * 1000);
+		try {
+			while (true){
+				boolean stopping = !running;
+				if (!stopping && tap.available() < CHUNK){
+					try {
+						Thread.sleep(Math.max(1, chunkMillis / 4));
+					} catch (InterruptedException e) {
+						// Keep going until stop() says otherwise.
+					}
+					continue;
+				}
+				int n = tap.read(left, right, 0, CHUNK);
+				if (n > 0) write(n);
+				else if (stopping) break;
+			}
+		} catch (IOException e) {
+			error = e;
+			if (source != null) source.removeListener(tap);
+			running = false;
+		} finally {
+			try {
+				closeSegment();
+			} catch (IOException e) {
+				if (error == null) error = e;
+			}
+		}
+	}
+
+	private void write(int n) throws IOException {
+		int done = 0;
+		while (done < n){
+			if (segmentFrames == maxSegmentFrames){
+				closeSegment();
+				openSegment();
+			}
+			int count = (int) Math.min(n - done, maxSegmentFrames - segmentFrames);
+			bytes.clear();
+			for(int i = done; i < done + count; i++){
+				put(left[i]);
+				put(right[i]);
+			}
+			bytes.flip();
+			while (bytes.hasRemaining()) channel.write(bytes);
+			done += count;
+			segmentFrames += count;
+			frames += count;
+		}
+	}
+
+	/**
+	 * Writes one sample, scaled by 32768 (or 8388608 for 24 bits) like the decoders do, and clipped.
+	 */
+	private void put(float x) {
+		if (depth == 16){
+			bytes.putShort(SampleBuffer.toShort(x));
+		} else {
+			int v = Math.round(x * 8388608);
+			if (v > 8388607) v = 8388607;
+			else if (v < -8388608) v = -8388608;
+			bytes.put((byte) v);
+			bytes.put((byte) (v >> 8));
+			bytes.put((byte) (v >> 16));
+		}
+	}
+
+	private void openSegment() throws IOException {
+		RandomAccessFile f = new RandomAccessFile(getSegmentFile(segments), "rw");
+		f.setLength(0);
+		channel = f.getChannel();
+		segmentFrames = 0;
+		// The sizes in the header are filled in when the segment is closed.
+		ByteBuffer header = header(0);
+		while (header.hasRemaining()) channel.write(header);
+		segments++;
+	}
+
+	private void closeSegment() throws IOException {
+		if (channel == null) return;
+		try {
+			ByteBuffer header = header(segmentFrames * 2 * depth / 8);
+			long p = 0;
+			while (header.hasRemaining()) p += channel.write(header, p);
+		} finally {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	private ByteBuffer header(long dataSize) {
+		int blockAlign = 2 * depth / 8;
+		ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		h.put(new byte[] {'R', 'I', 'F', 'F'});
+		h.putInt((int) (dataSize + HEADER_SIZE - 8));
+		h.put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '});
+		h.putInt(16);
+		h.putShort((short) 1);  // PCM
+		h.putShort((short) 2);  // Channels
+		h.putInt((int) sampleRate);
+		h.putInt((int) sampleRate * blockAlign);
+		h.putShort((short) blockAlign);
+		h.putShort((short) depth);
+		h.put(new byte[] {'d', 'a', 't', 'a'});
+		h.putInt((int) dataSize);
+		h.flip();
+		return h;
+	}
+
+}
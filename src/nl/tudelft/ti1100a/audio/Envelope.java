@@ -0,0 +1,111 @@
+package nl.tudelft.ti1100a.audio;
+
+import java.util.Arrays;
+
+/**
+ * An Envelope describes how a parameter changes over time, as a series of breakpoints connected by straight lines.
+ *
+ * It is played by an {@link AutomationLane}. Example, a fade out over two seconds, after holding the volume for one second:
+ *
+ * <pre>
+ * loop.getVolumeLane().play(new Envelope().hold(1).rampTo(0, 2));
+ * </pre>
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see AutomationLane
+ */
+public class Envelope {
+
+	private float[] times;
+	private float[] values;
+	private int count;
+
+	/**
+	 * Creates a new Envelope that starts at the value the parameter has when the envelope starts playing.
+	 */
+	public Envelope() {
+		this(Float.NaN);
+	}
+
+	/**
+	 * Creates a new Envelope.
+	 *
+	 * @param value The value at the start.
+	 */
+	public Envelope(float value) {
+		times = new float[4];
+		values = new float[4];
+		times[0] = 0;
+		values[0] = value;
+		count = 1;
+	}
+
+	/**
+	 * Adds a breakpoint after the last one, connected to it by a straight line.
+	 *
+	 * @param value The value at the new breakpoint.
+	 * @param duration The time, in seconds, between the last breakpoint and the new one. 0 to jump to the new value.
+	 * @return This Envelope.
+	 */
+	public Envelope rampTo(float value, float duration) {
+		if (duration < 0) throw new IllegalArgumentException("Duration must not be negative");
+		if (count == times.length){
+			times = Arrays.copyOf(times, count * 2);
+			values = Arrays.copyOf(values, count * 2);
+		}
+		times[count] = times[count - 1] + duration;
+		values[count] = value;
+		count++;
+		return this;
+	}
+
+	/**
+	 * Keeps the value of the last breakpoint for a while.
+	 *
+	 * @param duration The time, in seconds.
+	 * @return This Envelope.
+	 */
+	public Envelope hold(float duration) {
+		return rampTo(values[count - 1], duration);
+	}
+
+	/**
+	 * Returns the time, in seconds, of the last breakpoint.
+	 */
+	public float getDuration() {
+		return times[count - 1];
+	}
+
+	/**
+	 * Returns the value at the specified time.
+	 *
+	 * @param time The time, in seconds since the start.
+	 * @param start The value to use for breakpoints that have no value of their own (the start of an {@link #Envelope()}).
+	 */
+	public float getValue(float time, float start) {
+		int i = 1;
+		while (i < count && time >= times[i]) i++;
+		if (i == count) return value(count - 1, start);
+		if (time <= 0) return value(0, start);
+		float from = value(i - 1, start);
+		float to = value(i, start);
+		return from + (to - from) * (time - times[i - 1]) / (times[i] - times[i - 1]);
+	}
+
+	private float value(int i, float start) {
+		float v = values[i];
+		return Float.isNaN(v) ? start : v;
+	}
+
+	/**
+	 * Returns a copy that doesn't change when this one does.
+	 */
+	Envelope copy() {
+		Envelope c = new Envelope(values[0]);
+		c.times = Arrays.copyOf(times, count);
+		c.values = Arrays.copyOf(values, count);
+		c.count = count;
+		return c;
+	}
+
+}
@@ -0,0 +1,74 @@
+package nl.tudelft.ti1100a.audio;
+
+/**
+ * A simple in-place radix-2 fast Fourier transform, with precomputed tables.
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ */
+final class FFT {
+
+	private final int size;
+	private final int[] reverse;
+	private final float[] cos;
+	private final float[] sin;
+
+	/**
+	 * Creates a new FFT.
+	 *
+	 * @param size The size of the transform. Must be a power of two.
+	 */
+	FFT(int size) {
+		if (size < 2 || (size & (size - 1)) != 0) throw new IllegalArgumentException("FFT size must be a power of two");
+		this.size = size;
+		reverse = new int[size];
+		int bits = Integer.numberOfTrailingZeros(size);
+		for(int i = 0; i < size; i++) reverse[i] = Integer.reverse(i) >>> (32 - bits);
+		cos = new float[size / 2];
+		sin = new float[size / 2];
+		for(int i = 0; i < size / 2; i++){
+			cos[i] = (float) Math.cos(-2 * Math.PI * i / size);
+			sin[i] = (float) Math.sin(-2 * Math.PI * i / size);
+		}
+	}
+
+	/**
+	 * Returns the size of the transform.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Transforms the signal in place.
+	 *
+	 * @param re The real parts.
+	 * @param im The imaginary parts.
+	 */
+	void forward(float[] re, float[] im) {
+		for(int i = 0; i < size; i++){
+			int j = reverse[i];
+			if (j > i){
+				float t = re[i]; re[i] = re[j]; re[j] = t;
+				t = im[i]; im[i] = im[j]; im[j] = t;
+			}
+		}
+		for(int half = 1; half < size; half <<= 1){
+			int step = size / (half * 2);
+			for(int i = 0; i < size; i += half * 2){
+				for(int k = 0; k < half; k++){
+					float wr = cos[k * step];
+					float wi = sin[k * step];
+					int a = i + k;
+					int b = a + half;
+					float tr = re[b] * wr - im[b] * wi;
+					float ti = re[b] * wi + im[b] * wr;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+	}
+
+}
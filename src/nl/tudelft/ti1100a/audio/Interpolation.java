@@ -0,0 +1,26 @@
+package nl.tudelft.ti1100a.audio;
+
+/**
+ * The way a {@link LoopMixer.Loop} computes samples that fall between the samples of its audio, when it's played faster or slower than the original.
+ * 
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see LoopMixer.Loop#setInterpolation(Interpolation)
+ */
+public enum Interpolation {
+	
+	/**
+	 * Use the nearest earlier sample. This is the fastest, but adds some distortion when the tempo differs from the original. This is the default.
+	 */
+	NEAREST,
+	
+	/**
+	 * Interpolate linearly between the two surrounding samples.
+	 */
+	LINEAR,
+	
+	/**
+	 * Interpolate between the four surrounding samples with a cubic (Catmull-Rom) spline. This sounds best, but is the slowest.
+	 */
+	CUBIC
+	
+}
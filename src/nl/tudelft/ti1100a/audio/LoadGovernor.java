@@ -0,0 +1,227 @@
+package nl.tudelft.ti1100a.audio;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A LoadGovernor watches how much of the time of every buffer the {@link LoopMixer} needs to render it,
+ * and lowers the quality of the mix when that gets too close to the deadline, to avoid hearable dropouts.
+ *
+ * Under pressure, it steps down one level at a time:
+ * <ol>
+ * <li>All loops use {@link Interpolation#NEAREST} interpolation.</li>
+ * <li>Effects that are marked as optional (see {@link AbstractEffectable#setOptional(ddf.minim.AudioEffect, boolean)}) are bypassed.</li>
+ * <li>The loops with the lowest priority (see {@link LoopMixer.Loop#setPriority(int)}) are muted.
+ *     Every next level mutes the next lowest priority, but the loops with the highest priority are never muted.</li>
+ * </ol>
+ * When the load has been low enough for a while, it steps back up one level at a time.
+ *
+ * The LoadGovernor of a LoopMixer can be obtained using {@link LoopMixer#getLoadGovernor()}. It's disabled by default.
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see LoadGovernorListener
+ */
+public class LoadGovernor {
+
+	/**
+	 * The level at which nothing is degraded.
+	 */
+	public static final int NORMAL = 0;
+
+	/**
+	 * The level at which all loops use the fastest interpolation.
+	 */
+	public static final int REDUCED_INTERPOLATION = 1;
+
+	/**
+	 * The level at which optional effects are bypassed too.
+	 */
+	public static final int BYPASSED_EFFECTS = 2;
+
+	/**
+	 * The first level at which loops are muted. Every level above this one mutes one more priority.
+	 */
+	public static final int MUTED_LOOPS = 3;
+
+	private static final int MAX_LEVEL = 64;
+
+	private final LoopMixer mixer;
+	private final List<LoadGovernorListener> listeners;
+	private final int[] mutedBelow;
+
+	private volatile boolean enabled;
+	private volatile int level;
+	private float high;
+	private float low;
+	private float restoreDelay;
+	private float load;
+	private float averageLoad;
+	private int buffersSinceChange;
+
+	LoadGovernor(LoopMixer mixer) {
+		this.mixer = mixer;
+		listeners = new CopyOnWriteArrayList<LoadGovernorListener>();
+		mutedBelow = new int[MAX_LEVEL - MUTED_LOOPS + 1];
+		enabled = false;
+		level = NORMAL;
+		high = 0.8f;
+		low = 0.5f;
+		restoreDelay = 2.0f;
+	}
+
+	/**
+	 * Add a {@link LoadGovernorListener} to this LoadGovernor.
+	 *
+	 * @param l The {@link LoadGovernorListener} that will be listening.
+	 */
+	public void addListener(LoadGovernorListener l) {
+		listeners.add(l);
+	}
+
+	/**
+	 * Remove a {@link LoadGovernorListener} from this LoadGovernor.
+	 *
+	 * @param l The {@link LoadGovernorListener} to remove.
+	 */
+	public void removeListener(LoadGovernorListener l) {
+		listeners.remove(l);
+	}
+
+	/**
+	 * Enables or disables the LoadGovernor. When disabled, it goes back to {@link #NORMAL} at the next buffer.
+	 *
+	 * @param enabled Whether the LoadGovernor should be enabled.
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Returns whether the LoadGovernor is enabled.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Changes when the LoadGovernor steps down and up.
+	 *
+	 * @param high The load (the render time as a fraction of the duration of a buffer) above which it steps down. (0.8 by default.)
+	 * @param low The average load below which it steps back up. (0.5 by default.)
+	 * @param restoreDelay The time, in seconds, the average load has to stay below {@code low} before stepping up. (2 by default.)
+	 */
+	public void setThresholds(float high, float low, float restoreDelay) {
+		this.high = high;
+		this.low = low;
+		this.restoreDelay = restoreDelay;
+	}
+
+	/**
+	 * Returns the current level of degradation.
+	 *
+	 * @see #NORMAL
+	 * @see #REDUCED_INTERPOLATION
+	 * @see #BYPASSED_EFFECTS
+	 * @see #MUTED_LOOPS
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Returns the render time of the last buffer, as a fraction of the duration of a buffer.
+	 */
+	public float getLoad() {
+		return load;
+	}
+
+	/**
+	 * Returns the average render time of the recent buffers, as a fraction of the duration of a buffer.
+	 */
+	public float getAverageLoad() {
+		return averageLoad;
+	}
+
+	/**
+	 * Returns the priority below which loops are currently muted, or {@link Integer#MIN_VALUE} if no loops are muted.
+	 */
+	public int getMutedPriority() {
+		int l = level;
+		return l >= MUTED_LOOPS ? mutedBelow[l - MUTED_LOOPS] : Integer.MIN_VALUE;
+	}
+
+	/**
+	 * Returns the interpolation a loop should use instead of the requested one.
+	 */
+	Interpolation limit(Interpolation interpolation) {
+		return level >= REDUCED_INTERPOLATION ? Interpolation.NEAREST : interpolation;
+	}
+
+	/**
+	 * Returns whether optional effects should be bypassed.
+	 */
+	boolean bypassOptionalEffects() {
+		return level >= BYPASSED_EFFECTS;
+	}
+
+	/**
+	 * Returns whether a loop with the specified priority should be muted.
+	 */
+	boolean isMuted(int priority) {
+		return priority < getMutedPriority();
+	}
+
+	/**
+	 * Called by the audio thread after every buffer.
+	 *
+	 * @param time The time it took to render the buffer, in nanoseconds.
+	 * @param frames The number of samples in the buffer.
+	 * @param sampleRate The sample rate.
+	 */
+	void update(long time, int frames, float sampleRate) {
+		float bufferDuration = frames / sampleRate;
+		load = time / (bufferDuration * 1e9f);
+		averageLoad += (load - averageLoad) * 0.1f;
+		buffersSinceChange++;
+		if (!enabled){
+			if (level != NORMAL) setLevel(NORMAL);
+		} else if (load > high){
+			// Give the previous step one buffer to have effect.
+			if (buffersSinceChange > 1) stepDown();
+		} else if (averageLoad < low && level > NORMAL && buffersSinceChange * bufferDuration >= restoreDelay){
+			setLevel(level - 1);
+		}
+	}
+
+	private void stepDown() {
+		int l = level + 1;
+		if (l < MUTED_LOOPS){
+			setLevel(l);
+			return;
+		}
+		int step = l - MUTED_LOOPS;
+		if (step >= mutedBelow.length) return;
+		int threshold = step > 0 ? mutedBelow[step - 1] : Integer.MIN_VALUE;
+		// Find the lowest priority that isn't muted yet, and the one above that.
+		int lowest = Integer.MAX_VALUE;
+		for(LoopMixer.Loop loop : mixer.loops){
+			int p = loop.getPriority();
+			if (p >= threshold && p < lowest) lowest = p;
+		}
+		int next = Integer.MAX_VALUE;
+		for(LoopMixer.Loop loop : mixer.loops){
+			int p = loop.getPriority();
+			if (p > lowest && p < next) next = p;
+		}
+		if (next == Integer.MAX_VALUE) return; // Only the highest priority is left.
+		mutedBelow[step] = next;
+		setLevel(l);
+	}
+
+	private void setLevel(int l) {
+		level = l;
+		buffersSinceChange = 0;
+		for(LoadGovernorListener listener : listeners) listener.levelChanged(this, l);
+	}
+
+}
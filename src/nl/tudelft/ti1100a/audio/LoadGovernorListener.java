@@ -0,0 +1,21 @@
+package nl.tudelft.ti1100a.audio;
+
+/**
+ * A LoadGovernorListener is notified when a {@link LoadGovernor} changes its level of degradation.
+ * 
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see LoadGovernor
+ */
+public interface LoadGovernorListener {
+	
+	/**
+	 * This method is called when the level of the {@link LoadGovernor} changes.
+	 * 
+	 * It is called on the audio thread, so it should return quickly.
+	 * 
+	 * @param governor The {@link LoadGovernor} that changed its level.
+	 * @param level The new level. See {@link LoadGovernor#getLevel()}.
+	 */
+	public void levelChanged(LoadGovernor governor, int level);
+	
+}
@@ -0,0 +1,75 @@
+package nl.tudelft.ti1100a.audio;
+
+/**
+ * The tempo and downbeat of an audio fragment, as estimated by {@link LoopAnalyzer}.
+ *
+ * The values can be given directly to the {@link LoopMixer.Loop} constructors.
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see LoopIndex
+ */
+public class LoopAnalysis {
+
+	private final float bpm;
+	private final float measures;
+	private final float startPosition;
+	private final int beatsPerMeasure;
+	private final float confidence;
+
+	/**
+	 * Creates a new LoopAnalysis.
+	 *
+	 * @param bpm The tempo, in beats per minute.
+	 * @param measures The number of measures in the fragment.
+	 * @param startPosition The position, in seconds from the beginning, where the first measure begins.
+	 * @param beatsPerMeasure The number of beats per measure that was assumed.
+	 * @param confidence How clear the rhythm was, from 0 to 1.
+	 */
+	public LoopAnalysis(float bpm, float measures, float startPosition, int beatsPerMeasure, float confidence) {
+		this.bpm = bpm;
+		this.measures = measures;
+		this.startPosition = startPosition;
+		this.beatsPerMeasure = beatsPerMeasure;
+		this.confidence = confidence;
+	}
+
+	/**
+	 * Returns the tempo, in beats per minute.
+	 */
+	public float getBpm() {
+		return bpm;
+	}
+
+	/**
+	 * Returns the number of measures in the fragment.
+	 */
+	public float getMeasures() {
+		return measures;
+	}
+
+	/**
+	 * Returns the position, in seconds from the beginning, where the first measure begins.
+	 */
+	public float getStartPosition() {
+		return startPosition;
+	}
+
+	/**
+	 * Returns the number of beats per measure that was assumed.
+	 */
+	public int getBeatsPerMeasure() {
+		return beatsPerMeasure;
+	}
+
+	/**
+	 * Returns how clear the rhythm was, from 0 (no rhythm found) to 1.
+	 */
+	public float getConfidence() {
+		return confidence;
+	}
+
+	@Override public String toString() {
+		return bpm + " BPM, " + measures + " measures, starting at " + startPosition + " s (confidence " + confidence + ")";
+	}
+
+}
@@ -0,0 +1,203 @@
+package nl.tudelft.ti1100a.audio;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the tempo, the number of measures and the position of the first downbeat of an audio fragment that is meant to be looped.
+ *
+ * The fragment is treated as circular: it's assumed to contain a whole number of measures,
+ * so only tempos at which it fits a whole number of measures are considered.
+ * Onsets are detected using the spectral flux, the tempo is found by autocorrelating the onsets,
+ * and the downbeat is the beat with the most low-frequency onsets.
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see LoopIndex
+ */
+public final class LoopAnalyzer {
+
+	private static final int FFT_SIZE = 1024;
+	private static final int HOP = 256;
+	private static final float MIN_BPM = 60;
+	private static final float MAX_BPM = 200;
+	private static final float LOW_FREQUENCY = 200;
+
+	private LoopAnalyzer() {
+	}
+
+	/**
+	 * Analyzes an audio fragment.
+	 *
+	 * An empty fragment has an unknown tempo: it is reported as one measure at 0 BPM, with a confidence of 0.
+	 *
+	 * @param left The samples of the left channel.
+	 * @param right The samples of the right channel. Can be the same array as {@code left}.
+	 * @param sampleRate The sample rate.
+	 * @param beatsPerMeasure The number of beats per measure to assume.
+	 */
+	public static LoopAnalysis analyze(float[] left, float[] right, float sampleRate, int beatsPerMeasure) {
+		int n = Math.min(left.length, right.length);
+		if (n == 0) return new LoopAnalysis(0, 1, 0, beatsPerMeasure, 0);
+		float length = n / sampleRate;
+		int frames = Math.max(1, Math.round(n / (float) HOP));
+		float hop = n / (float) frames;
+
+		float[] onsets = new float[frames];
+		float[] lowOnsets = new float[frames];
+		spectralFlux(left, right, n, sampleRate, hop, onsets, lowOnsets);
+
+		// Autocorrelation of the onsets, without their mean.
+		float mean = 0;
+		for(float o : onsets) mean += o;
+		mean /= frames;
+		float[] d = new float[frames];
+		float energy = 0;
+		for(int i = 0; i < frames; i++){
+			d[i] = onsets[i] - mean;
+			energy += d[i] * d[i];
+		}
+		// Only a few lags are needed, so they are computed when they are first used.
+		float[] correlation = new float[frames];
+		Arrays.fill(correlation, Float.NaN);
+
+		// Try every whole number of measures that gives a reasonable tempo.
+		int bestMeasures = 0;
+		float bestScore = Float.NEGATIVE_INFINITY;
+		float bestComb = 0;
+		for(int measures = 1; measures <= 64; measures++){
+			int beats = measures * beatsPerMeasure;
+			float bpm = beats * 60 / length;
+			if (bpm < MIN_BPM || bpm > MAX_BPM) continue;
+			float period = frames / (float) beats;
+			float comb = 0;
+			int count = Math.min(4, beats);
+			for(int k = 1; k <= count; k++){
+				float lag = (k * period) % frames;
+				comb += correlate(d, energy, correlation, (int) lag) * (1 - (lag - (int) lag)) + correlate(d, energy, correlation, ((int) lag + 1) % frames) * (lag - (int) lag);
+			}
+			comb /= count;
+			// Prefer tempos around 120 BPM, to choose between half and double tempo.
+			double octaves = Math.log(bpm / 120) / Math.log(2);
+			float score = comb * (float) Math.exp(-octaves * octaves);
+			if (score > bestScore){
+				bestScore = score;
+				bestMeasures = measures;
+				bestComb = comb;
+			}
+		}
+		if (bestMeasures == 0){
+			// Too short or too long to contain a whole number of measures at a reasonable tempo.
+			int measures = Math.max(1, Math.round(length * 120 / 60 / beatsPerMeasure));
+			return new LoopAnalysis(measures * beatsPerMeasure * 60 / length, measures, 0, beatsPerMeasure, 0);
+		}
+
+		int beats = bestMeasures * beatsPerMeasure;
+		float period = frames / (float) beats;
+
+		// The phase of the beats.
+		float bestPhase = 0;
+		float bestSum = Float.NEGATIVE_INFINITY;
+		for(float phase = 0; phase < period; phase += 0.25f){
+			float sum = 0;
+			for(int b = 0; b < beats; b++) sum += interpolate(onsets, phase + b * period);
+			if (sum > bestSum){
+				bestSum = sum;
+				bestPhase = phase;
+			}
+		}
+
+		// The beat of the measure that starts it.
+		int bestBeat = 0;
+		float bestDownbeat = Float.NEGATIVE_INFINITY;
+		for(int j = 0; j < beatsPerMeasure; j++){
+			float sum = 0;
+			for(int m = 0; m < bestMeasures; m++){
+				float p = bestPhase + (j + m * beatsPerMeasure) * period;
+				sum += interpolate(lowOnsets, p);
+			}
+			if (sum > bestDownbeat * 1.05f){
+				bestDownbeat = sum;
+				bestBeat = j;
+			}
+		}
+
+		// The flux of a frame peaks when the onset is in the middle of its window, one hop after the start of that of the previous frame.
+		float start = (bestPhase + bestBeat * period) * hop + FFT_SIZE / 2 + HOP;
+		float measureLength = n / (float) bestMeasures;
+		start %= measureLength;
+		return new LoopAnalysis(beats * 60 / length, bestMeasures, start / sampleRate, beatsPerMeasure, Math.max(0, Math.min(1, bestComb)));
+	}
+
+	/**
+	 * Computes the (positive) spectral flux for every frame, treating the fragment as circular.
+	 */
+	private static void spectralFlux(float[] left, float[] right, int n, float sampleRate, float hop, float[] onsets, float[] lowOnsets) {
+		FFT fft = new FFT(FFT_SIZE);
+		int bins = FFT_SIZE / 2;
+		int lowBins = Math.max(2, (int) (LOW_FREQUENCY * FFT_SIZE / sampleRate));
+		float[] window = new float[FFT_SIZE];
+		for(int i = 0; i < FFT_SIZE; i++) window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (FFT_SIZE - 1)));
+		float[] re = new float[FFT_SIZE];
+		float[] im = new float[FFT_SIZE];
+		int frames = onsets.length;
+		float[][] spectra = new float[2][bins];
+		// The low frequencies are kept linear, so louder kicks count more when looking for the downbeat.
+		float[][] lowSpectra = new float[2][lowBins];
+		// Start with the spectrum of the last frame, since the fragment is circular.
+		for(int k = -1; k < frames; k++){
+			int first = Math.round(((k + frames) % frames) * hop);
+			for(int i = 0; i < FFT_SIZE; i++){
+				int index = (first + i) % n;
+				re[i] = (left[index] + right[index]) * 0.5f * window[i];
+				im[i] = 0;
+			}
+			fft.forward(re, im);
+			float[] spectrum = spectra[(k + 2) % 2];
+			float[] previous = spectra[(k + 1) % 2];
+			float[] low = lowSpectra[(k + 2) % 2];
+			float[] previousLow = lowSpectra[(k + 1) % 2];
+			float flux = 0;
+			float lowFlux = 0;
+			for(int i = 0; i < bins; i++){
+				float magnitude = (float) Math.sqrt(re[i] * re[i] + im[i] * im[i]);
+				spectrum[i] = (float) Math.log(1 + 100 * magnitude);
+				float change = spectrum[i] - previous[i];
+				if (change > 0) flux += change;
+				if (i < lowBins){
+					low[i] = magnitude;
+					change = magnitude - previousLow[i];
+					if (change > 0) lowFlux += change;
+				}
+			}
+			if (k >= 0){
+				onsets[k] = flux;
+				lowOnsets[k] = lowFlux;
+			}
+		}
+	}
+
+	/**
+	 * Returns the normalized circular autocorrelation at a lag, computing it if it's not known yet.
+	 */
+	private static float correlate(float[] d, float energy, float[] correlation, int lag) {
+		if (Float.isNaN(correlation[lag])){
+			int n = d.length;
+			float c = 0;
+			for(int i = 0; i < n; i++) c += d[i] * d[(i + lag) % n];
+			correlation[lag] = energy > 0 ? c / energy : 0;
+		}
+		return correlation[lag];
+	}
+	
+	/**
+	 * Returns the value at a fractional, circular index, interpolated linearly.
+	 */
+	private static float interpolate(float[] values, float index) {
+		int n = values.length;
+		index %= n;
+		if (index < 0) index += n;
+		int i = (int) index;
+		float t = index - i;
+		return values[i % n] * (1 - t) + values[(i + 1) % n] * t;
+	}
+
+}
@@ -0,0 +1,307 @@
+package nl.tudelft.ti1100a.audio;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * A LoopIndex keeps the {@link LoopAnalysis} of audio files, keyed by a hash of their contents, in a file.
+ *
+ * Whole directories can be analyzed at once, in parallel on all processors.
+ * Files that were analyzed before (even if they were renamed or moved) are not analyzed again.
+ * A {@link LoopMixer.Loop} can take its number of measures and start position from the index (see {@link LoopMixer.Loop#Loop(String, LoopIndex)}).
+ *
+ * Example:
+ *
+ * <pre>
+ * LoopIndex index = new LoopIndex(new File("loops.index"));
+ * index.analyze(new File("loops"), 4);
+ * index.save();
+ * ...
+ * Loop loop = mixer.new Loop("loops/drums.wav", index);
+ * </pre>
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see LoopAnalyzer
+ */
+public class LoopIndex {
+
+	private static final String HEADER = "# LoopIndex 1: hash, bpm, measures, start position, beats per measure, confidence, name";
+	// Only what Java Sound can decode by itself, so nothing is skipped (and hashed again) on every run.
+	private static final String[] EXTENSIONS = { ".wav", ".aif", ".aiff", ".aifc", ".au", ".snd" };
+
+	private final File file;
+	private final Map<String, LoopAnalysis> analyses;
+	private final Map<String, String> names;
+
+	/**
+	 * Creates a new LoopIndex, and loads it from the specified file if it exists.
+	 *
+	 * @param file The file to keep the index in.
+	 * @throws IOException If the file exists, but could not be read.
+	 */
+	public LoopIndex(File file) throws IOException {
+		this.file = file;
+		analyses = new ConcurrentHashMap<String, LoopAnalysis>();
+		names = new ConcurrentHashMap<String, String>();
+		if (file.exists()) load();
+	}
+
+	private void load() throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null){
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				String[] f = line.split("\t", 7);
+				if (f.length < 6) continue;
+				try {
+					analyses.put(f[0], new LoopAnalysis(Float.parseFloat(f[1]), Float.parseFloat(f[2]), Float.parseFloat(f[3]), Integer.parseInt(f[4]), Float.parseFloat(f[5])));
+					if (f.length > 6) names.put(f[0], f[6]);
+				} catch (NumberFormatException e) {
+					// Skip broken lines; the file will be analyzed again.
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the index to its file.
+	 *
+	 * The index is written to a temporary file first, so the old index stays intact if writing fails.
+	 *
+	 * @throws IOException If the file could not be written.
+	 */
+	public synchronized void save() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+		try {
+			out.write(HEADER);
+			out.newLine();
+			for(Map.Entry<String, LoopAnalysis> e : analyses.entrySet()){
+				LoopAnalysis a = e.getValue();
+				String name = names.get(e.getKey());
+				out.write(e.getKey() + "\t" + a.getBpm() + "\t" + a.getMeasures() + "\t" + a.getStartPosition() + "\t"
+						+ a.getBeatsPerMeasure() + "\t" + a.getConfidence() + "\t" + (name != null ? name : ""));
+				out.newLine();
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)){
+			// Not atomic on every platform, but renameTo doesn't replace existing files everywhere.
+			file.delete();
+			if (!temp.renameTo(file)) throw new IOException("Could not replace " + file);
+		}
+	}
+
+	/**
+	 * Returns the number of analyzed files in the index.
+	 */
+	public int size() {
+		return analyses.size();
+	}
+
+	/**
+	 * Returns the analysis of an audio file, or null if it's not in the index.
+	 *
+	 * @param audio The audio file. Its contents are hashed to find it in the index.
+	 * @throws IOException If the file could not be read.
+	 */
+	public LoopAnalysis get(File audio) throws IOException {
+		return analyses.get(hash(audio));
+	}
+
+	/**
+	 * Returns the analysis of an audio file, or null if it's not in the index.
+	 *
+	 * @param hash The hash of the contents of the file, as returned by {@link #hash(File)}.
+	 */
+	public LoopAnalysis get(String hash) {
+		return analyses.get(hash);
+	}
+
+	/**
+	 * Adds an analysis to the index, replacing the one that was there already.
+	 *
+	 * @param hash The hash of the contents of the file, as returned by {@link #hash(File)}.
+	 * @param name The name of the file, to make the index easier to read.
+	 * @param analysis The analysis.
+	 */
+	public void put(String hash, String name, LoopAnalysis analysis) {
+		analyses.put(hash, analysis);
+		if (name != null) names.put(hash, name);
+	}
+
+	/**
+	 * Analyzes all audio files in a directory and its subdirectories that are not in the index yet, using all processors.
+	 *
+	 * Only WAV, AIFF and AU files are analyzed, since those can be decoded without Minim. Files that can't be decoded are skipped.
+	 * Call {@link #save()} to store the results.
+	 *
+	 * @param directory The directory to analyze.
+	 * @param beatsPerMeasure The number of beats per measure to assume.
+	 * @return The number of files that were analyzed.
+	 * @throws IOException If the directory could not be read.
+	 */
+	public int analyze(File directory, final int beatsPerMeasure) throws IOException {
+		List<File> files = new ArrayList<File>();
+		collect(directory, files);
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final AtomicInteger analyzed = new AtomicInteger();
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for(final File f : files){
+				results.add(executor.submit(new Runnable() {
+					@Override public void run() {
+						try {
+							String hash = hash(f);
+							if (analyses.containsKey(hash)) return;
+							float[][] pcm = decode(f);
+							if (pcm == null) return;
+							put(hash, f.getName(), LoopAnalyzer.analyze(pcm[0], pcm[1], pcm[2][0], beatsPerMeasure));
+							analyzed.incrementAndGet();
+						} catch (IOException e) {
+							// Skip unreadable files.
+						}
+					}
+				}));
+			}
+			for(Future<?> r : results){
+				try {
+					r.get();
+				} catch (Exception e) {
+					// Only failed analyses end up here; they are skipped.
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		return analyzed.get();
+	}
+
+	private static void collect(File directory, List<File> files) throws IOException {
+		File[] entries = directory.listFiles();
+		if (entries == null) throw new IOException("Could not list " + directory);
+		for(File f : entries){
+			if (f.isDirectory()){
+				collect(f, files);
+				continue;
+			}
+			String name = f.getName().toLowerCase();
+			for(String extension : EXTENSIONS){
+				if (name.endsWith(extension)){
+					files.add(f);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the hash of the contents of a file, as used as key in the index.
+	 *
+	 * @param audio The file to hash.
+	 * @throws IOException If the file could not be read.
+	 */
+	public static String hash(File audio) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e); // Every Java platform has SHA-1.
+		}
+		FileInputStream in = new FileInputStream(audio);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(65536);
+			while (channel.read(buffer) >= 0){
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			in.close();
+		}
+		StringBuilder hex = new StringBuilder();
+		for(byte b : digest.digest()) hex.append(String.format("%02x", b & 0xff));
+		return hex.toString();
+	}
+
+	/**
+	 * Decodes an audio file using Java Sound, which (unlike Minim) can be used from many threads at once.
+	 *
+	 * @return The left channel, the right channel and the sample rate (as the only element of the third array), or null if the format is not supported.
+	 */
+	static float[][] decode(File audio) throws IOException {
+		AudioInputStream in;
+		try {
+			in = AudioSystem.getAudioInputStream(audio);
+		} catch (UnsupportedAudioFileException e) {
+			return null;
+		}
+		try {
+			AudioFormat source = in.getFormat();
+			int channels = source.getChannels();
+			AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, source.getSampleRate(), 16, channels, channels * 2, source.getSampleRate(), false);
+			if (!source.matches(pcm)){
+				if (!AudioSystem.isConversionSupported(pcm, source)) return null;
+				in = AudioSystem.getAudioInputStream(pcm, in);
+			}
+			byte[] chunk = new byte[65536 - 65536 % (channels * 2)];
+			float[] left = new float[65536];
+			float[] right = new float[65536];
+			int n = 0;
+			int read;
+			int pending = 0;
+			while ((read = in.read(chunk, pending, chunk.length - pending)) >= 0){
+				read += pending;
+				int frames = read / (channels * 2);
+				if (n + frames > left.length){
+					int size = Math.max(left.length * 2, n + frames);
+					left = Arrays.copyOf(left, size);
+					right = Arrays.copyOf(right, size);
+				}
+				for(int i = 0; i < frames; i++){
+					int p = i * channels * 2;
+					left[n + i] = (short) ((chunk[p] & 0xff) | chunk[p + 1] << 8) / 32768.0f;
+					p += (channels - 1) * 2;
+					right[n + i] = (short) ((chunk[p] & 0xff) | chunk[p + 1] << 8) / 32768.0f;
+				}
+				n += frames;
+				pending = read - frames * channels * 2;
+				System.arraycopy(chunk, frames * channels * 2, chunk, 0, pending);
+			}
+			return new float[][] { Arrays.copyOf(left, n), Arrays.copyOf(right, n), { source.getSampleRate() } };
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -1,8 +1,16 @@
 package nl.tudelft.ti1100a.audio;
 
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.sound.sampled.AudioFormat;
 
@@ -17,8 +25,30 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 	
 	private AudioOutput out;
 	
+	private final AudioSignal mix;
+	
+	private volatile boolean sounding = true;
+	
 	protected List<Loop> loops;
 	
+	final List<Sampler> samplers;
+	
+	private final List<AudioListener> taps;
+	
+	private final int bufferSize;
+	private SampleFormat sampleFormat = SampleFormat.FLOAT;
+	private boolean offHeap = false;
+	private float[] loopLeft;
+	private float[] loopRight;
+	// The audio thread converts the samples a loop reads into these, one block at a time.
+	private static final int WINDOW = 520;
+	private final float[] windowLeft = new float[WINDOW];
+	private final float[] windowRight = new float[WINDOW];
+	private final LoadGovernor governor;
+	private long bufferTime;
+	private ScheduledExecutorService freezer;
+	private ExecutorService loader;
+	
 	/**
 	 * The Minim interface used by this LoopMixer.
 	 */
@@ -38,10 +68,156 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 	public LoopMixer(Minim minim, Rhythm rhythm) {
 		this.minim = minim;
 		this.rhythm = rhythm;
-		loops = new ArrayList<Loop>();
-		out = minim.getLineOut(Minim.STEREO, 1024, rhythm.sampleRate());
+		this.bufferSize = 1024;
+		loops = new CopyOnWriteArrayList<Loop>();
+		samplers = new CopyOnWriteArrayList<Sampler>();
+		taps = new CopyOnWriteArrayList<AudioListener>();
+		governor = new LoadGovernor(this);
+		out = minim.getLineOut(Minim.STEREO, bufferSize, rhythm.sampleRate());
+		mix = new AudioSignal() {
+			@Override public void generate(float[] data) {
+				render(data, data);
+			}
+			@Override public void generate(float[] left, float[] right) {
+				render(left, right);
+			}
+		};
+		out.addSignal(mix);
+		// This is the output that is heard, so the predictions of the ClickTrack should use its latency.
+		if (rhythm instanceof ClickTrack) ((ClickTrack) rhythm).setLineLatency(out.bufferSize() / rhythm.sampleRate());
+	}
+	
+	/**
+	 * Creates a new LoopMixer without an audio output, to be played by a {@link StreamOutput}.
+	 * 
+	 * The {@link Effectable} methods of the LoopMixer itself can not be used, and the {@link Polyphonic} methods only work for Loops.
+	 * Listeners receive the mix of all loops and samplers, like {@link #addTap(AudioTap) taps} do.
+	 * 
+	 * @param minim The Minim interface to use to load files, or null if Loops are only created from samples.
+	 * @param rhythm The Rhythm to use.
+	 * @param bufferSize The number of samples per buffer.
+	 */
+	public LoopMixer(Minim minim, Rhythm rhythm, int bufferSize) {
+		this.minim = minim;
+		this.rhythm = rhythm;
+		this.bufferSize = bufferSize;
+		loops = new CopyOnWriteArrayList<Loop>();
+		samplers = new CopyOnWriteArrayList<Sampler>();
+		taps = new CopyOnWriteArrayList<AudioListener>();
+		governor = new LoadGovernor(this);
+		out = null;
+		mix = null;
+	}
+	
+	/**
+	 * Creates a new LoopMixer without an audio output.
+	 * 
+	 * Nothing is played; the mix has to be pulled with {@link #render(float[], float[])}.
+	 * Loops can only be created from samples.
+	 * 
+	 * @param rhythm The Rhythm to use.
+	 * @param bufferSize The number of samples per buffer.
+	 */
+	LoopMixer(Rhythm rhythm, int bufferSize) {
+		this(null, rhythm, bufferSize);
+	}
+	
+	/**
+	 * Returns whether the LoopMixer plays through its own audio output.
+	 */
+	boolean hasOutput() {
+		return out != null;
+	}
+	
+	/**
+	 * Renders the next buffer of the mix of all loops.
+	 * 
+	 * This is called by the audio output of the LoopMixer. It only needs to be called directly if the LoopMixer has no audio output.
+	 * If {@code left} and {@code right} are the same array, a mono mix is rendered.
+	 * 
+	 * @param left The buffer for the left channel.
+	 * @param right The buffer for the right channel.
+	 */
+	void render(float[] left, float[] right) {
+		long start = System.nanoTime();
+		bufferTime = start;
+		int n = left.length;
+		if (loopLeft == null || loopLeft.length != n){
+			loopLeft = new float[n];
+			loopRight = new float[n];
+		}
+		for(int i = 0; i < n; i++) left[i] = right[i] = 0.0f;
+		if (!sounding) return;
+		for(Loop l : loops){
+			if (!l.enabled) continue;
+			if (left == right){
+				l.generate(loopLeft);
+				for(int i = 0; i < n; i++) left[i] += loopLeft[i];
+			} else {
+				l.generate(loopLeft, loopRight);
+				for(int i = 0; i < n; i++){
+					left[i]  += loopLeft[i];
+					right[i] += loopRight[i];
+				}
+			}
+		}
+		for(Sampler s : samplers) s.render(left, right);
+		for(AudioListener t : taps){
+			if (left == right) t.samples(left);
+			else t.samples(left, right);
+		}
+		governor.update(System.nanoTime() - start, n, sampleRate());
+	}
+	
+	/**
+	 * Returns the {@link LoadGovernor} of this LoopMixer.
+	 */
+	public LoadGovernor getLoadGovernor() {
+		return governor;
 	}
 
+	/**
+	 * Returns the thread that freezes the loops of this LoopMixer, one at a time.
+	 */
+	private synchronized ScheduledExecutorService freezer() {
+		if (freezer == null) freezer = Executors.newSingleThreadScheduledExecutor(daemon("Loop freezer"));
+		return freezer;
+	}
+	
+	/**
+	 * Returns the thread that loads the new audio of replaced loops, one at a time.
+	 */
+	private synchronized ExecutorService loader() {
+		if (loader == null) loader = Executors.newSingleThreadExecutor(daemon("Loop loader"));
+		return loader;
+	}
+	
+	/**
+	 * Finds a file the way Minim does when it's used in a sketch: in the data folder, in the sketch folder, and then as given.
+	 * 
+	 * Like in an exported sketch, the sketch folder is the working directory.
+	 * 
+	 * @return The file, or null if it's not a local file (for example, a URL).
+	 */
+	private static File find(String filename) {
+		File file = new File(filename);
+		if (file.isAbsolute()) return file.isFile() ? file : null;
+		File sketch = new File(System.getProperty("user.dir"));
+		File[] candidates = { new File(new File(sketch, "data"), filename), new File(sketch, filename), file };
+		for(File f : candidates) if (f.isFile()) return f;
+		return null;
+	}
+	
+	private static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			@Override public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+	
 	/**
 	 * Closes all used resources.
 	 * 
@@ -50,6 +226,11 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 	void close() {
 		for(Loop l : loops) l.close();
 		loops.clear();
+		samplers.clear();
+		synchronized (this) {
+			if (freezer != null) freezer.shutdownNow();
+			if (loader != null) loader.shutdownNow();
+		}
 	}
 
 	/**
@@ -62,16 +243,82 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 	public class Loop extends AbstractEffectable implements AudioSignal, Effectable, Recordable {
 		
 		private List<AudioListener> listeners;
-		private float[] samplesLeft;
-		private float[] samplesRight;
+		private volatile boolean enabled = true;
+		// Swapped by the audio thread, and read by the freezer.
+		private volatile SampleBuffer samples;
 		private int position;
 		private int duration;
 		private int offset;
-		private float volumeLeft;
-		private float volumeRight;
+		// The parts of a sample lost to rounding when the tempo changed, so the loop doesn't drift while the tempo keeps changing.
+		private double positionFraction;
+		private double offsetFraction;
+		private volatile float volumeLeft;
+		private volatile float volumeRight;
 		private boolean playing;
-		private float measures;
+		private volatile float measures;
+		private volatile boolean resync;
 		private RhythmListener rhythmListener;
+		private volatile Frozen frozen;
+		private boolean freeze;
+		private boolean freezing;
+		private boolean refreeze;
+		private int freezeGeneration;
+		// Set by the audio thread when the frozen audio is out of date, and picked up by the freezer.
+		private volatile boolean stale;
+		private ScheduledFuture<?> staleCheck;
+		private Interpolation interpolation;
+		private int priority;
+		private TransportState transport;
+		private long frames;
+		private volatile Swap pending;
+		private long replacements;
+		private long loaded;
+		private SampleBuffer fadeSamples;
+		private int fadePosition;
+		private int fadeDuration;
+		private int fadeOffset;
+		private int fadeLength;
+		private int fadeRemaining;
+		private AutomationLane volumeLane;
+		private AutomationLane panLane;
+		private float appliedLeft;
+		private float appliedRight;
+		private float[] gainLeft;
+		private float[] gainRight;
+		private long bufferFrame;
+		
+		private static final int TEMPO_BLOCK = 128;
+		private static final int STALE_CHECK_INTERVAL = 50; // milliseconds
+		
+		/**
+		 * New audio for the loop, waiting for the audio thread to swap it in.
+		 */
+		private class Swap {
+			final SampleBuffer samples;
+			final float measures;
+			final float start; // As a fraction of the length of the fragment, or NaN to keep the current offset.
+			final boolean atMeasure;
+			final int crossfade;
+			Swap(SampleBuffer samples, float measures, float start, boolean atMeasure, int crossfade) {
+				this.samples = samples;
+				this.measures = measures;
+				this.start = start;
+				this.atMeasure = atMeasure;
+				this.crossfade = crossfade;
+			}
+		}
+		
+		/**
+		 * The rendered audio of a frozen loop, and the samples it was rendered from.
+		 */
+		private class Frozen {
+			final SampleBuffer audio;
+			final SampleBuffer source;
+			Frozen(SampleBuffer audio, SampleBuffer source) {
+				this.audio = audio;
+				this.source = source;
+			}
+		}
 		
 		/**
 		 * Creates a new Loop.
@@ -94,33 +341,92 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 			AudioSample audio = minim.loadSample(filename);
 			
 			if (audio.getFormat().getChannels() >= 2){
-				samplesLeft = audio.getChannel(1);
-				samplesRight = audio.getChannel(2);
+				init(audio.getChannel(1), audio.getChannel(2), audio.length()/1000.0f, measuresPerLoop, startPosition);
 			} else {
-				samplesLeft = audio.getChannel(1);
-				samplesRight = audio.getChannel(1);
+				init(audio.getChannel(1), audio.getChannel(1), audio.length()/1000.0f, measuresPerLoop, startPosition);
+			}
+			
+			// The decoded floats are not used anymore if they were converted.
+			if (samples.format() != SampleFormat.FLOAT || samples.isOffHeap()) audio.close();
+		}
+		
+		/**
+		 * Creates a new Loop, taking the number of measures and the start position from a {@link LoopIndex}.
+		 * 
+		 * If the file is not in the index yet, it's analyzed right away and added to the index.
+		 * 
+		 * @param filename The filename of the audio fragment to use.
+		 * @param index The index to look up the audio fragment in.
+		 */
+		public Loop(String filename, LoopIndex index) {
+			AudioSample audio = minim.loadSample(filename);
+			float[] left = audio.getChannel(1);
+			float[] right = audio.getFormat().getChannels() >= 2 ? audio.getChannel(2) : left;
+			
+			File file = find(filename);
+			String hash = null;
+			LoopAnalysis analysis = null;
+			try {
+				if (file != null){
+					hash = LoopIndex.hash(file);
+					analysis = index.get(hash);
+				}
+			} catch (IOException e) {
+				// Minim could read it, but we can't. Just analyze it.
 			}
+			if (analysis == null){
+				analysis = LoopAnalyzer.analyze(left, right, audio.sampleRate(), rhythm.getBeatsPerMeasure());
+				if (hash != null) index.put(hash, file.getName(), analysis);
+			}
+			float beats = analysis.getMeasures() * analysis.getBeatsPerMeasure();
+			init(left, right, audio.length()/1000.0f, beats / rhythm.getBeatsPerMeasure(), analysis.getStartPosition());
+			
+			// The decoded floats are not used anymore if they were converted.
+			if (samples.format() != SampleFormat.FLOAT || samples.isOffHeap()) audio.close();
+		}
+		
+		/**
+		 * Creates a new Loop from samples.
+		 * 
+		 * For a mono loop, {@code left} and {@code right} can be the same array.
+		 * 
+		 * @param left The samples of the left channel of the audio fragment.
+		 * @param right The samples of the right channel of the audio fragment.
+		 * @param sampleRate The sample rate of the audio fragment.
+		 * @param measuresPerLoop The number of measures in that audio fragment.
+		 * @param startPosition The position in the audio fragment, in seconds from the beginning, where the first measure begins.
+		 */
+		public Loop(float[] left, float[] right, float sampleRate, float measuresPerLoop, float startPosition) {
+			init(left, right, left.length / sampleRate, measuresPerLoop, startPosition);
+		}
+		
+		private void init(float[] left, float[] right, float length, float measuresPerLoop, float startPosition) {
+			samples = SampleBuffer.create(left, right, sampleFormat, offHeap);
 
 			position = 0;
 			volumeLeft = volumeRight = 1.0f;
+			appliedLeft = appliedRight = 1.0f;
+			volumeLane = new AutomationLane(1.0f, 0.0f, Float.MAX_VALUE);
+			panLane = new AutomationLane(0.0f, -1.0f, 1.0f);
 			playing = false;
+			interpolation = Interpolation.NEAREST;
+			priority = 0;
 			measures = measuresPerLoop;
 			duration = (int) (measures * rhythm.getExactMeasureDuration());		
-			offset = (int) ((startPosition / (audio.length()/1000.0f)) * duration);
+			offset = (int) ((startPosition / length) * duration);
+			
+			listeners = new CopyOnWriteArrayList<AudioListener>();
 			
-			listeners = new ArrayList<AudioListener>();
+			transport = new TransportState();
+			transport.publish(0, System.nanoTime(), false, position, duration, rhythm.getExactMeasureDuration(), rhythm.getBeatsPerMeasure());
 			
+			// The tempo is followed by the audio thread itself, between blocks.
 			rhythmListener = new RhythmListenerAdapter() {
-				@Override public void tempoChanged(float factor) {
-					syncDuration();
-				}
 				@Override public void positionChanged() {
 					syncPosition();
 				}
 			};
 			
-			LoopMixer.this.addSignal(this);
-			
 			rhythm.addRhythmListener(rhythmListener);
 			
 			loops.add(this);
@@ -128,39 +434,306 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 		
 		/** {@inheritDoc} */
 		@Override public void generate(float[] data) {
+			sync();
+			publish(data.length);
+			Swap s = pending;
+			if (s != null && (!playing || !rhythm.isPlaying() || governor.isMuted(priority))) swap(s, null);
+			if (!playing || !rhythm.isPlaying() || governor.isMuted(priority)) skipGains(data.length);
 			if (!playing || !rhythm.isPlaying()){
 				for(int i = 0; i < data.length; i++) data[i] = 0.0f;
+			} else if (governor.isMuted(priority)){
+				for(int i = 0; i < data.length; i++) data[i] = 0.0f;
+				skip(data.length);
 			} else {
+				SampleBuffer f = frozenAudio();
 				float[] left = data;
 				float[] right = new float[data.length];
-				generateSignal(left,right);
+				generateSignal(left,right,f != null ? f : samples);
 				for(int i = 0; i < data.length; i++) data[i] = (left[i] + right[i]) / 2.0f;
-				process(data);
+				if (f == null) process(data, governor.bypassOptionalEffects());
 			}
 			for(AudioListener l : listeners) l.samples(data);
 		}
 		
 		/** {@inheritDoc} */
 		@Override public void generate(float[] left, float[] right) {
+			sync();
+			publish(left.length);
+			Swap s = pending;
+			if (s != null && (!playing || !rhythm.isPlaying() || governor.isMuted(priority))) swap(s, null);
+			if (!playing || !rhythm.isPlaying() || governor.isMuted(priority)) skipGains(left.length);
 			if (!playing || !rhythm.isPlaying()){
 				for(int i = 0; i < left.length; i++) left[i] = right[i] = 0.0f;
+			} else if (governor.isMuted(priority)){
+				for(int i = 0; i < left.length; i++) left[i] = right[i] = 0.0f;
+				skip(left.length);
 			} else {
-				generateSignal(left,right);
-				process(left,right);
+				SampleBuffer f = frozenAudio();
+				generateSignal(left,right,f != null ? f : samples);
+				if (f == null) process(left,right,governor.bypassOptionalEffects());
 			}
 			for(AudioListener l : listeners) l.samples(left,right);
 		}
 		
-		private void generateSignal(float[] left, float[] right){
-			for(int i = 0; i < left.length; i++){
-				int index = ((int) ((samplesLeft.length * ((position+offset)/(float)duration)))) % samplesLeft.length;
-				left[i]  = samplesLeft[index] * volumeLeft;
-				right[i] = samplesRight[index] * volumeRight;
-				position++;
-				position %= duration;
+		/**
+		 * Follows the tempo of the {@link Rhythm}, and the number of measures. Called by the audio thread at the start of every buffer.
+		 */
+		private void sync() {
+			syncDuration();
+			if (resync){
+				resync = false;
+				syncPosition();
+			}
+		}
+		
+		/**
+		 * Publishes the transport state at the start of a buffer.
+		 */
+		private void publish(int samples) {
+			bufferFrame = frames;
+			transport.publish(frames, bufferTime, playing && rhythm.isPlaying(), position, duration, rhythm.getExactMeasureDuration(), rhythm.getBeatsPerMeasure());
+			frames += samples;
+		}
+		
+		/**
+		 * Generates the signal in blocks, following the tempo of the {@link Rhythm} between blocks.
+		 */
+		private void generateSignal(float[] left, float[] right, SampleBuffer samples){
+			int start = 0;
+			while (start < left.length){
+				if (start > 0) syncDuration();
+				int end = Math.min(left.length, start + TEMPO_BLOCK);
+				Swap s = pending;
+				if (s != null){
+					int boundary = s.atMeasure ? rhythm.getExactMeasureDuration() : duration;
+					int until = (boundary - position % boundary) % boundary;
+					if (until == 0){
+						samples = swap(s, samples);
+					} else if (until < end - start){
+						// Stop the block at the boundary, so the swap happens at exactly the right sample.
+						end = start + until;
+					}
+				}
+				fillGains(start, end);
+				generateSignal(left, right, start, end, samples);
+				// A separate pass, which the compiler can vectorize. Doing this inside the resampling loops makes them twice as slow.
+				for(int i = start; i < end; i++){
+					left[i]  *= gainLeft[i];
+					right[i] *= gainRight[i];
+				}
+				if (fadeRemaining > 0) crossfade(left, right, start, end);
+				start = end;
+			}
+		}
+		
+		/**
+		 * Computes the gain of every sample of a block, from the volume, the automation lanes and the previous block.
+		 */
+		private void fillGains(int from, int to) {
+			if (gainLeft == null || gainLeft.length < to){
+				// Only happens for the first buffer, or when the buffer size changes.
+				gainLeft = new float[Math.max(to, bufferSize())];
+				gainRight = new float[gainLeft.length];
+			}
+			int n = to - from;
+			volumeLane.block(bufferFrame + from, n, sampleRate());
+			panLane.block(bufferFrame + from, n, sampleRate());
+			float targetLeft = volumeLeft;
+			float targetRight = volumeRight;
+			float left0  = appliedLeft  * volumeLane.blockStart * panLeft(panLane.blockStart);
+			float right0 = appliedRight * volumeLane.blockStart * panRight(panLane.blockStart);
+			float left1  = targetLeft   * volumeLane.blockEnd   * panLeft(panLane.blockEnd);
+			float right1 = targetRight  * volumeLane.blockEnd   * panRight(panLane.blockEnd);
+			float stepLeft = (left1 - left0) / n;
+			float stepRight = (right1 - right0) / n;
+			for(int i = 0; i < n; i++){
+				gainLeft[from + i]  = left0  + stepLeft  * (i + 1);
+				gainRight[from + i] = right0 + stepRight * (i + 1);
+			}
+			appliedLeft = targetLeft;
+			appliedRight = targetRight;
+		}
+		
+		/**
+		 * Advances the automation lanes without computing any gains, for a buffer that isn't heard.
+		 */
+		private void skipGains(int samples) {
+			volumeLane.block(bufferFrame, samples, sampleRate());
+			panLane.block(bufferFrame, samples, sampleRate());
+			appliedLeft = volumeLeft;
+			appliedRight = volumeRight;
+		}
+		
+		private float panLeft(float pan) {
+			return pan > 0 ? 1 - pan : 1;
+		}
+		
+		private float panRight(float pan) {
+			return pan < 0 ? 1 + pan : 1;
+		}
+		
+		/**
+		 * Swaps in new audio. Called by the audio thread.
+		 * 
+		 * @param old The samples that were playing, to fade out, or null if nothing was hearable.
+		 * @return The new samples.
+		 */
+		private SampleBuffer swap(Swap s, SampleBuffer old) {
+			fadeSamples = s.crossfade > 0 ? old : null;
+			if (fadeSamples != null){
+				fadePosition = position;
+				fadeDuration = duration;
+				fadeOffset = offset;
+				fadeLength = fadeRemaining = s.crossfade;
+			} else {
+				fadeRemaining = 0;
+			}
+			int newDuration = (int) (s.measures * rhythm.getExactMeasureDuration());
+			if (Float.isNaN(s.start)){
+				double o = (offset + offsetFraction) * newDuration / duration;
+				offset = (int) o;
+				offsetFraction = o - offset;
+			} else {
+				offset = (int) (s.start * newDuration);
+				offsetFraction = 0;
+			}
+			offset %= newDuration;
+			position %= newDuration;
+			duration = newDuration;
+			measures = s.measures;
+			samples = s.samples;
+			pending = null;
+			// The frozen audio belongs to the old samples, and so does a freeze that is still running. The freezer renders the new ones.
+			frozen = null;
+			stale = true;
+			return samples;
+		}
+		
+		/**
+		 * Fades out the old audio over the new audio, after a swap.
+		 */
+		private void crossfade(float[] left, float[] right, int from, int to) {
+			int length = fadeSamples.length;
+			for(int i = from; i < to && fadeRemaining > 0; i++){
+				float gain = fadeRemaining / (float) fadeLength;
+				int index = ((int) ((length * ((fadePosition+fadeOffset)/(float)fadeDuration)))) % length;
+				left[i]  = left[i]  * (1 - gain) + fadeSamples.left(index)  * gainLeft[i]  * gain;
+				right[i] = right[i] * (1 - gain) + fadeSamples.right(index) * gainRight[i] * gain;
+				fadePosition++;
+				fadePosition %= fadeDuration;
+				fadeRemaining--;
+			}
+			if (fadeRemaining == 0) fadeSamples = null;
+		}
+		
+		private void generateSignal(float[] left, float[] right, int from, int to, SampleBuffer samples){
+			int length = samples.length;
+			float[] sourceRight = samples.stride == 1 ? windowLeft : windowRight;
+			// A loop played much faster than it was recorded reads more samples than fit in the window, so then the block is split up.
+			int most = (int) Math.max(1, (long) (WINDOW - 6) * duration / length);
+			while (from < to){
+				int end = Math.min(to, from + most);
+				// Convert the samples this part reads, starting one early for the cubic interpolation, plus a few for the interpolation and rounding.
+				int base = ((int) (length * ((position+offset)/(float)duration))) - 1;
+				int count = (int) ((long) (end - from) * length / duration) + 6;
+				samples.decode(base + length, count, windowLeft, windowRight);
+				generateSignal(left, right, from, end, windowLeft, sourceRight, base, length);
+				from = end;
+			}
+		}
+		
+		/**
+		 * Reads sample (int) p of the loop from index (int) p - base of the source, which continues past the end of the loop.
+		 */
+		private void generateSignal(float[] left, float[] right, int from, int to, float[] sourceLeft, float[] sourceRight, int base, int length){
+			switch (governor.limit(interpolation)){
+			case NEAREST:
+				for(int i = from; i < to; i++){
+					int index = ((int) ((length * ((position+offset)/(float)duration)))) - base;
+					if (index < 0) index += length;
+					left[i]  = sourceLeft[index];
+					right[i] = sourceRight[index];
+					position++;
+					position %= duration;
+				}
+				break;
+			case LINEAR:
+				for(int i = from; i < to; i++){
+					float p = length * ((position+offset)/(float)duration);
+					int index = ((int) p) - base;
+					if (index < 0) index += length;
+					float t = p - (int) p;
+					float l = sourceLeft[index];
+					float r = sourceRight[index];
+					left[i]  = (l + (sourceLeft[index + 1]  - l) * t);
+					right[i] = (r + (sourceRight[index + 1] - r) * t);
+					position++;
+					position %= duration;
+				}
+				break;
+			case CUBIC:
+				for(int i = from; i < to; i++){
+					float p = length * ((position+offset)/(float)duration);
+					int k = ((int) p) - base;
+					if (k < 0) k += length;
+					float t = p - (int) p;
+					left[i]  = cubic(sourceLeft[k - 1],  sourceLeft[k],  sourceLeft[k + 1],  sourceLeft[k + 2],  t);
+					right[i] = cubic(sourceRight[k - 1], sourceRight[k], sourceRight[k + 1], sourceRight[k + 2], t);
+					position++;
+					position %= duration;
+				}
+				break;
 			}
 		}
 		
+		/**
+		 * Catmull-Rom interpolation between b and c.
+		 */
+		private float cubic(float a, float b, float c, float d, float t) {
+			return b + 0.5f * t * (c - a + t * (2*a - 5*b + 4*c - d + t * (3*(b - c) + d - a)));
+		}
+		
+		/**
+		 * Advances the loop without generating anything.
+		 */
+		private void skip(int samples) {
+			position = (position + samples) % duration;
+		}
+		
+		/**
+		 * Changes the interpolation used when the loop is played faster or slower than the original.
+		 * 
+		 * @param interpolation The new interpolation.
+		 */
+		public void setInterpolation(Interpolation interpolation) {
+			this.interpolation = interpolation;
+		}
+		
+		/**
+		 * Returns the interpolation used when the loop is played faster or slower than the original.
+		 */
+		public Interpolation getInterpolation() {
+			return interpolation;
+		}
+		
+		/**
+		 * Changes the priority of the loop.
+		 * 
+		 * When there's not enough time to render everything, the loops with the lowest priority are muted first. See {@link LoadGovernor}.
+		 * 
+		 * @param priority The new priority. (0 by default.)
+		 */
+		public void setPriority(int priority) {
+			this.priority = priority;
+		}
+		
+		/**
+		 * Returns the priority of the loop.
+		 */
+		public int getPriority() {
+			return priority;
+		}
+		
 		/**
 		 * Starts the loop.
 		 * 
@@ -215,6 +788,260 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 			playing = true;
 		}
 		
+		/**
+		 * Freezes the loop.
+		 * 
+		 * One full cycle of the loop, including its effects, is rendered in the background.
+		 * As soon as that is done, the loop plays the rendered audio instead of running its effects for every buffer.
+		 * The loop is rendered again automatically when its effects or the tempo change. Until that is done, it plays the previously rendered audio.
+		 * 
+		 * The volume of a frozen loop is applied after its effects, instead of before.
+		 * 
+		 * While a loop is frozen for the first time, its effects are used by both the audio thread and the background thread.
+		 * Effects that keep state between buffers might glitch once.
+		 * 
+		 * @see #unfreeze()
+		 */
+		public void freeze() {
+			synchronized (this) {
+				if (freeze) return;
+				freeze = true;
+				stale = false;
+				// The audio thread can't start a freeze itself, so the freezer checks regularly whether it asked for one.
+				staleCheck = freezer().scheduleWithFixedDelay(new Runnable() {
+					@Override public void run() {
+						if (stale){
+							stale = false;
+							refreeze();
+						}
+					}
+				}, STALE_CHECK_INTERVAL, STALE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+			refreeze();
+		}
+		
+		/**
+		 * Unfreezes the loop, to let it run its effects for every buffer again.
+		 * 
+		 * @see #freeze()
+		 */
+		public synchronized void unfreeze() {
+			freeze = false;
+			if (staleCheck != null){
+				staleCheck.cancel(false);
+				staleCheck = null;
+			}
+			freezeGeneration++;
+			frozen = null;
+		}
+		
+		/**
+		 * Returns whether the loop is currently playing frozen audio.
+		 * 
+		 * @see #freeze()
+		 */
+		public boolean isFrozen() {
+			return frozenAudio() != null;
+		}
+		
+		/**
+		 * Returns the frozen audio, or null if there is none or if it belongs to samples that were swapped out since.
+		 */
+		private SampleBuffer frozenAudio() {
+			Frozen f = frozen;
+			return f != null && f.source == samples ? f.audio : null;
+		}
+		
+		@Override protected void effectsChanged() {
+			refreeze();
+		}
+		
+		private void refreeze() {
+			synchronized (this) {
+				if (!freeze) return;
+				freezeGeneration++;
+				if (freezing){
+					refreeze = true;
+					return;
+				}
+				freezing = refreeze = true;
+			}
+			freezer().execute(new Runnable() {
+				@Override public void run() {
+					boolean done = false;
+					try {
+						while (true){
+							int generation;
+							int length;
+							SampleBuffer source;
+							List<AudioEffect> chain;
+							synchronized (Loop.this) {
+								if (!refreeze || !freeze){
+									freezing = false;
+									done = true;
+									return;
+								}
+								refreeze = false;
+								generation = freezeGeneration;
+								length = duration;
+								source = samples;
+								// Changing the effects makes a new generation, so a chain that changes after this is never used.
+								chain = enabledEffects();
+							}
+							SampleBuffer f = render(length, source, chain);
+							synchronized (Loop.this) {
+								if (generation == freezeGeneration) frozen = new Frozen(f, source);
+							}
+						}
+					} finally {
+						// If an effect threw, let the next change try again.
+						if (!done){
+							synchronized (Loop.this) {
+								freezing = false;
+							}
+						}
+					}
+				}
+			});
+		}
+		
+		/**
+		 * Renders one cycle of the loop with its effects, at unity volume.
+		 * 
+		 * Two cycles are rendered, and only the second is kept, so effects with a tail (like reverb or delay) loop seamlessly.
+		 */
+		private SampleBuffer render(int length, SampleBuffer samples, List<AudioEffect> chain) {
+			float[] left = new float[length];
+			float[] right = new float[length];
+			int block = bufferSize();
+			for(int pass = 0; pass < 2; pass++){
+				float[] blockLeft = new float[block];
+				float[] blockRight = new float[block];
+				for(int start = 0; start < length; start += block){
+					int n = Math.min(block, length - start);
+					if (n != blockLeft.length){
+						blockLeft = new float[n];
+						blockRight = new float[n];
+					}
+					for(int i = 0; i < n; i++){
+						int index = (int) (samples.length * ((start + i) / (float) length)) % samples.length;
+						blockLeft[i]  = samples.left(index);
+						blockRight[i] = samples.right(index);
+					}
+					for(AudioEffect e : chain) e.process(blockLeft, blockRight);
+					if (pass == 1){
+						System.arraycopy(blockLeft, 0, left, start, n);
+						System.arraycopy(blockRight, 0, right, start, n);
+					}
+				}
+			}
+			return SampleBuffer.create(left, right, SampleFormat.FLOAT, false);
+		}
+		
+		/**
+		 * Replaces the audio of the loop at the start of the next loop, keeping the number of measures and the offset.
+		 * 
+		 * @param filename The filename of the new audio fragment.
+		 * @see #replace(String, float, float, boolean, float)
+		 */
+		public void replace(String filename) {
+			replace(filename, null, null, 0, measures, Float.NaN, false, 0);
+		}
+		
+		/**
+		 * Replaces the audio of the loop, without interrupting it.
+		 * 
+		 * The new audio fragment is loaded in the background. When it's loaded, the audio thread swaps it in at the next boundary.
+		 * The effects, volume, listeners and everything else stay the same.
+		 * The old samples are released (left for the garbage collector) once the audio thread doesn't use them anymore.
+		 * If the loop is frozen, it plays its effects live from the swap until the new audio is frozen.
+		 * 
+		 * If the loop is replaced again before the first replacement was swapped in, only the last one is used.
+		 * 
+		 * @param filename The filename of the new audio fragment.
+		 * @param measuresPerLoop The number of measures in the new audio fragment.
+		 * @param startPosition The position in the new audio fragment, in seconds from the beginning, where the first measure begins.
+		 * @param atMeasure Whether to swap at the start of the next measure, instead of at the start of the next loop.
+		 * @param crossfade The time, in seconds, to fade from the old to the new audio, or 0 to switch instantly.
+		 */
+		public void replace(String filename, float measuresPerLoop, float startPosition, boolean atMeasure, float crossfade) {
+			replace(filename, null, null, 0, measuresPerLoop, startPosition, atMeasure, crossfade);
+		}
+		
+		/**
+		 * Replaces the audio of the loop with samples, without interrupting it.
+		 * 
+		 * For a mono loop, {@code left} and {@code right} can be the same array.
+		 * 
+		 * @param left The samples of the left channel of the new audio fragment.
+		 * @param right The samples of the right channel of the new audio fragment.
+		 * @param sampleRate The sample rate of the new audio fragment.
+		 * @param measuresPerLoop The number of measures in the new audio fragment.
+		 * @param startPosition The position in the new audio fragment, in seconds from the beginning, where the first measure begins.
+		 * @param atMeasure Whether to swap at the start of the next measure, instead of at the start of the next loop.
+		 * @param crossfade The time, in seconds, to fade from the old to the new audio, or 0 to switch instantly.
+		 * @see #replace(String, float, float, boolean, float)
+		 */
+		public void replace(float[] left, float[] right, float sampleRate, float measuresPerLoop, float startPosition, boolean atMeasure, float crossfade) {
+			replace(null, left, right, sampleRate, measuresPerLoop, startPosition, atMeasure, crossfade);
+		}
+		
+		private void replace(final String filename, final float[] left, final float[] right, final float sampleRate,
+				final float measuresPerLoop, final float startPosition, final boolean atMeasure, final float crossfade) {
+			final long generation;
+			synchronized (this) {
+				generation = ++replacements;
+			}
+			loader().execute(new Runnable() {
+				@Override public void run() {
+					try {
+						load();
+					} finally {
+						synchronized (Loop.this) {
+							loaded = generation;
+						}
+					}
+				}
+				private boolean superseded() {
+					synchronized (Loop.this) {
+						return generation != replacements;
+					}
+				}
+				private void load() {
+					// Only the last replacement is used, so don't bother loading the others.
+					if (superseded()) return;
+					SampleBuffer buffer;
+					float length;
+					if (filename != null){
+						AudioSample audio = minim.loadSample(filename);
+						if (audio == null) return; // Minim already reported the error.
+						float[] l = audio.getChannel(1);
+						float[] r = audio.getFormat().getChannels() >= 2 ? audio.getChannel(2) : l;
+						buffer = SampleBuffer.create(l, r, sampleFormat, offHeap);
+						length = audio.length() / 1000.0f;
+						if (buffer.format() != SampleFormat.FLOAT || buffer.isOffHeap()) audio.close();
+					} else {
+						buffer = SampleBuffer.create(left, right, sampleFormat, offHeap);
+						length = left.length / sampleRate;
+					}
+					Swap s = new Swap(buffer, measuresPerLoop, startPosition / length, atMeasure, (int) (crossfade * sampleRate()));
+					// When the audio thread swaps the new audio in, it asks the freezer to freeze the loop again.
+					synchronized (Loop.this) {
+						if (generation == replacements) pending = s;
+					}
+				}
+			});
+		}
+		
+		/**
+		 * Returns whether new audio is still being loaded or waiting to be swapped in.
+		 * 
+		 * @see #replace(String, float, float, boolean, float)
+		 */
+		public synchronized boolean isReplacing() {
+			return loaded != replacements || pending != null;
+		}
+		
 		/**
 		 * Stops the loop.
 		 */
@@ -229,6 +1056,20 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 			return playing;
 		}
 
+		/**
+		 * Returns the format in which the samples of this loop are kept in memory.
+		 */
+		public SampleFormat getSampleFormat() {
+			return samples.format();
+		}
+		
+		/**
+		 * Returns the number of bytes used to keep the samples of this loop in memory.
+		 */
+		public long getSampleMemory() {
+			return samples.byteSize();
+		}
+		
 		/**
 		 * Returns the number of measures per loop.
 		 */
@@ -236,6 +1077,18 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 			return measures;
 		}
 		
+		/**
+		 * Copies the transport state of the last buffer, without locking.
+		 * 
+		 * Unlike the separate getters, all values in the snapshot belong together, so this is the way to poll the loop from another thread.
+		 * 
+		 * @param into The snapshot to copy the state into.
+		 * @return The snapshot that was passed in.
+		 */
+		public TransportSnapshot getTransport(TransportSnapshot into) {
+			return transport.read(into, sampleRate());
+		}
+		
 		/**
 		 * Returns which measure of the loop is currently playing.
 		 */
@@ -246,17 +1099,20 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 		/**
 		 * Changes the speed.
 		 * 
+		 * The loop follows the new speed from the start of the next buffer.
+		 * 
 		 * @param measures The number of measures one loop will take.
 		 */
 		public void setNumberOfMeasures(float measures) {
 			this.measures = measures;
-			syncDuration();
-			syncPosition();
+			resync = true;
 		}
 
 		/**
 		 * Changes the volume of both the left and the right channel.
 		 * 
+		 * The change is spread over a few milliseconds, to avoid clicks. For fades, use the {@link #getVolumeLane() volume lane}.
+		 * 
 		 * @param volume The new volume, as a factor of the original (ie. 1 for 100%).
 		 */
 		public void setVolume(float volume) {
@@ -304,6 +1160,24 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 			return volumeRight;
 		}
 		
+		/**
+		 * Returns the automation lane of the volume.
+		 * 
+		 * Its value (1 by default) is multiplied with the volume of both channels.
+		 */
+		public AutomationLane getVolumeLane() {
+			return volumeLane;
+		}
+		
+		/**
+		 * Returns the automation lane of the pan.
+		 * 
+		 * Its value goes from -1 (only left) through 0 (the default, both channels at their own volume) to 1 (only right).
+		 */
+		public AutomationLane getPanLane() {
+			return panLane;
+		}
+		
 		/**
 		 * Returns the duration of one loop, in samples. 
 		 */
@@ -381,22 +1255,29 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 		 * Do not use the loop after it's removed.
 		 */
 		public void remove(){
+			unfreeze();
 			close();
 			loops.remove(this);
 		}
 		
 		protected void close(){
-			LoopMixer.this.removeSignal(this);
 			rhythm.removeRhythmListener(rhythmListener);
 		}
 		
 		protected void syncDuration(){
 			int newDuration = (int) (measures * rhythm.getExactMeasureDuration());
 			if (newDuration != duration){
-				float factor = this.duration / (float)newDuration;
+				double factor = newDuration / (double)duration;
+				double p = (position + positionFraction) * factor % newDuration;
+				double o = (offset + offsetFraction) * factor % newDuration;
+				position = (int) p;
+				offset = (int) o;
+				positionFraction = p - position;
+				offsetFraction = o - offset;
 				duration = newDuration;
-				position /= factor;
-				offset /= factor;
+				// A frozen loop is stretched to the new tempo, until it's rendered again. Tiny changes are not worth rendering again.
+				SampleBuffer f = frozenAudio();
+				if (f != null && Math.abs(f.length - duration) > duration / 200) stale = true;
 			}
 		}
 		
@@ -407,6 +1288,21 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 		@Override public void addListener(AudioListener l)    { listeners.add(l);    }
 		@Override public void removeListener(AudioListener l) { listeners.remove(l); }
 		
+		/**
+		 * Adds an {@link AudioTap} that receives the output of this loop, after its effects.
+		 * 
+		 * @param tap The {@link AudioTap} to add.
+		 */
+		public void addTap(AudioTap tap)    { addListener(tap);    }
+		
+		/**
+		 * Removes an {@link AudioTap}.
+		 * 
+		 * @param tap The {@link AudioTap} to remove.
+		 */
+		public void removeTap(AudioTap tap) { removeListener(tap); }
+		
+		LoopMixer mixer()                        { return LoopMixer.this;              }
 		@Override public int bufferSize()        { return LoopMixer.this.bufferSize(); }
 		@Override public AudioFormat getFormat() { return LoopMixer.this.getFormat();  }
 		@Override public int type()              { return LoopMixer.this.type();       }
@@ -414,6 +1310,57 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 		
 	}
 	
+	/**
+	 * Adds an {@link AudioTap} that receives the mix of all loops and samplers, before the effects of the LoopMixer.
+	 * 
+	 * The tap is fed by the LoopMixer itself, so it also works for a LoopMixer without an audio output.
+	 * 
+	 * @param tap The {@link AudioTap} to add.
+	 */
+	public void addTap(AudioTap tap) {
+		taps.add(tap);
+	}
+	
+	/**
+	 * Removes an {@link AudioTap} from the mix.
+	 * 
+	 * @param tap The {@link AudioTap} to remove.
+	 */
+	public void removeTap(AudioTap tap) {
+		taps.remove(tap);
+	}
+	
+	/**
+	 * Changes the format in which the samples of new loops are kept in memory.
+	 * 
+	 * By default, samples are kept as 32-bit floats on the Java heap.
+	 * The 16-bit formats use half the memory, which helps when a lot of loops are playing at the same time.
+	 * Storing the samples off the heap keeps large sets of loops out of the way of the garbage collector.
+	 * 
+	 * Loops that already exist are not changed.
+	 * 
+	 * @param format The format to use for new loops.
+	 * @param offHeap Whether to store the samples of new loops outside of the Java heap.
+	 */
+	public void setSampleFormat(SampleFormat format, boolean offHeap) {
+		this.sampleFormat = format;
+		this.offHeap = offHeap;
+	}
+	
+	/**
+	 * Returns the format in which the samples of new loops are kept in memory.
+	 */
+	public SampleFormat getSampleFormat() {
+		return sampleFormat;
+	}
+	
+	/**
+	 * Returns whether the samples of new loops are stored outside of the Java heap.
+	 */
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+	
 	// Effectable
 	/** {@inheritDoc} */ @Override public void addEffect(AudioEffect e)     {        out.addEffect(e);     }
 	/** {@inheritDoc} */ @Override public void clearEffects()               {        out.clearEffects();   }
@@ -431,29 +1378,133 @@ public class LoopMixer implements Recordable, Effectable, Polyphonic {
 	/** {@inheritDoc} */ @Override public void removeEffect(AudioEffect e)  {        out.removeEffect(e);  }
 	/** {@inheritDoc} */ @Override public AudioEffect removeEffect(int e)   { return out.removeEffect(e);  }
 	
-	// Recordable
-	/** {@inheritDoc} */ @Override public void addListener(AudioListener l)    {        out.addListener(l);    }
-	/** {@inheritDoc} */ @Override public void removeListener(AudioListener l) {        out.removeListener(l); }
-	/** {@inheritDoc} */ @Override public AudioFormat getFormat()              { return out.getFormat();       }
-	/** {@inheritDoc} */ @Override public int bufferSize()                     { return out.bufferSize();      }
-	/** {@inheritDoc} */ @Override public float sampleRate()                   { return out.sampleRate();      }
-	/** {@inheritDoc} */ @Override public int type()                           { return out.type();            }
+	// Recordable (without an audio output, listeners receive the mix like taps do)
+	/** {@inheritDoc} */ @Override public void addListener(AudioListener l)    { if (out != null) out.addListener(l);    else taps.add(l);    }
+	/** {@inheritDoc} */ @Override public void removeListener(AudioListener l) { if (out != null) out.removeListener(l); else taps.remove(l); }
+	/** {@inheritDoc} */ @Override public AudioFormat getFormat()              { return out != null ? out.getFormat()  : new AudioFormat(sampleRate(), 16, 2, true, false); }
+	/** {@inheritDoc} */ @Override public int bufferSize()                     { return out != null ? out.bufferSize() : bufferSize;         }
+	/** {@inheritDoc} */ @Override public float sampleRate()                   { return out != null ? out.sampleRate() : rhythm.sampleRate(); }
+	/** {@inheritDoc} */ @Override public int type()                           { return out != null ? out.type()       : Minim.STEREO;       }
 
 	// Polyphonic
-	/** {@inheritDoc} */ @Override public void addSignal(AudioSignal s)     {        out.addSignal(s);     }
-	/** {@inheritDoc} */ @Override public void clearSignals()               {        out.clearSignals();   }
-	/** {@inheritDoc} */ @Override public void disableSignal(int s)         {        out.disableSignal(s); }
-	/** {@inheritDoc} */ @Override public void disableSignal(AudioSignal s) {        out.disableSignal(s); }
-	/** {@inheritDoc} */ @Override public void enableSignal(int s)          {        out.enableSignal(s);  }
-	/** {@inheritDoc} */ @Override public void enableSignal(AudioSignal s)  {        out.enableSignal(s);  }
-	/** {@inheritDoc} */ @Override public AudioSignal getSignal(int s)      { return out.getSignal(s);     }
-	/** {@inheritDoc} */ @Override public boolean hasSignal(AudioSignal s)  { return out.hasSignal(s);     }
-	/** {@inheritDoc} */ @Override public boolean isEnabled(AudioSignal s)  { return out.isEnabled(s);     }
-	/** {@inheritDoc} */ @Override public boolean isSounding()              { return out.isSounding();     }
-	/** {@inheritDoc} */ @Override public void noSound()                    {        out.noSound();        }
-	/** {@inheritDoc} */ @Override public void removeSignal(AudioSignal s)  {        out.removeSignal(s);  }
-	/** {@inheritDoc} */ @Override public AudioSignal removeSignal(int s)   { return out.removeSignal(s);  }
-	/** {@inheritDoc} */ @Override public int signalCount()                 { return out.signalCount();    }
-	/** {@inheritDoc} */ @Override public void sound()                      {        out.sound();          }
+	// The Loops are mixed by the LoopMixer itself, not by the audio output, so they are handled here.
+	// Signals are numbered as if every Loop were a signal of the output: first the Loops, then the other signals.
+	
+	/**
+	 * Returns the signal as a Loop of this LoopMixer, or null if it isn't one.
+	 */
+	private Loop asLoop(AudioSignal s) {
+		return s instanceof Loop && ((Loop) s).mixer() == this ? (Loop) s : null;
+	}
+	
+	/**
+	 * Returns the index in the audio output of the signal with the specified index, skipping the Loops and the signal that renders the mix.
+	 */
+	private int outputIndex(int s) {
+		if (out == null) throw new IndexOutOfBoundsException("Signal " + s + " does not exist");
+		return s - loops.size() + 1;
+	}
+	
+	/**
+	 * Adds a signal. A Loop of this LoopMixer that was removed with {@link #removeSignal(AudioSignal)} is mixed again.
+	 * Other signals are added to the audio output, which the LoopMixer must have.
+	 */
+	@Override public void addSignal(AudioSignal s) {
+		Loop l = asLoop(s);
+		if (l == null){
+			if (out == null) throw new IllegalStateException("Only Loops can be added to a LoopMixer without an audio output");
+			out.addSignal(s);
+		} else if (!loops.contains(l)) loops.add(l);
+	}
+	
+	/** {@inheritDoc} */
+	@Override public void clearSignals() {
+		loops.clear();
+		if (out != null) for(int i = out.signalCount() - 1; i >= 0; i--) if (out.getSignal(i) != mix) out.removeSignal(i);
+	}
+	
+	/** {@inheritDoc} */
+	@Override public void disableSignal(int s) {
+		if (s < loops.size()) loops.get(s).enabled = false;
+		else out.disableSignal(outputIndex(s));
+	}
+	
+	/** {@inheritDoc} */
+	@Override public void disableSignal(AudioSignal s) {
+		Loop l = asLoop(s);
+		if (l != null) l.enabled = false;
+		else if (out != null && s != mix) out.disableSignal(s);
+	}
+	
+	/** {@inheritDoc} */
+	@Override public void enableSignal(int s) {
+		if (s < loops.size()) loops.get(s).enabled = true;
+		else out.enableSignal(outputIndex(s));
+	}
+	
+	/** {@inheritDoc} */
+	@Override public void enableSignal(AudioSignal s) {
+		Loop l = asLoop(s);
+		if (l != null) l.enabled = true;
+		else if (out != null && s != mix) out.enableSignal(s);
+	}
+	
+	/** {@inheritDoc} */
+	@Override public AudioSignal getSignal(int s) {
+		if (s < loops.size()) return loops.get(s);
+		return out.getSignal(outputIndex(s));
+	}
+	
+	/** {@inheritDoc} */
+	@Override public boolean hasSignal(AudioSignal s) {
+		Loop l = asLoop(s);
+		if (l != null) return loops.contains(l);
+		return out != null && s != mix && out.hasSignal(s);
+	}
+	
+	/** {@inheritDoc} */
+	@Override public boolean isEnabled(AudioSignal s) {
+		Loop l = asLoop(s);
+		if (l != null) return l.enabled && loops.contains(l);
+		return out != null && s != mix && out.isEnabled(s);
+	}
+	
+	/** {@inheritDoc} */
+	@Override public boolean isSounding() {
+		return sounding;
+	}
+	
+	/** {@inheritDoc} */
+	@Override public void noSound() {
+		sounding = false;
+		if (out != null) out.noSound();
+	}
+	
+	/**
+	 * Removes a signal. A Loop of this LoopMixer stops being mixed, but can be added again with {@link #addSignal(AudioSignal)}.
+	 * To get rid of a Loop completely, use {@link Loop#remove()}.
+	 */
+	@Override public void removeSignal(AudioSignal s) {
+		Loop l = asLoop(s);
+		if (l != null) loops.remove(l);
+		else if (out != null && s != mix) out.removeSignal(s);
+	}
+	
+	/** {@inheritDoc} */
+	@Override public AudioSignal removeSignal(int s) {
+		if (s < loops.size()) return loops.remove(s);
+		return out.removeSignal(outputIndex(s));
+	}
+	
+	/** {@inheritDoc} */
+	@Override public int signalCount() {
+		return loops.size() + (out != null ? out.signalCount() - 1 : 0);
+	}
+	
+	/** {@inheritDoc} */
+	@Override public void sound() {
+		sounding = true;
+		if (out != null) out.sound();
+	}
 
 }
@@ -0,0 +1,542 @@
+package nl.tudelft.ti1100a.audio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import ddf.minim.Minim;
+
+/**
+ * A NetworkClickTrack is a {@link ClickTrack} that shares its tempo, beat phase and start/stop state with other
+ * NetworkClickTracks on the network, using UDP multicast.
+ *
+ * All nodes follow one shared timeline: a tempo, the time of a downbeat, and whether it is playing.
+ * Changing the tempo or starting or stopping any of the nodes changes the timeline for all of them.
+ *
+ * Each node estimates the offset between its own clock and the clocks of the other nodes from the timestamps in the
+ * messages they send each other. The phase of the local ClickTrack is then corrected smoothly, by playing slightly
+ * faster or slower (by at most half a percent) until it is in sync. Only starting a node makes it jump to the right position.
+ *
+ * A tempo automation is played by the node it was started on, which sends the changing tempo to the others as it goes,
+ * every 50 milliseconds. The automation itself is not shared: the other nodes only follow the tempo they receive.
+ *
+ * All nodes should use the same number of beats per measure. Nodes with different sample rates can be mixed.
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ */
+public class NetworkClickTrack extends ClickTrack {
+
+	/**
+	 * The default multicast group.
+	 */
+	public static final String DEFAULT_GROUP = "239.76.77.88";
+
+	/**
+	 * The default UDP port.
+	 */
+	public static final int DEFAULT_PORT = 20808;
+
+	/**
+	 * The maximum relative tempo change used to correct the phase.
+	 */
+	public static final float MAX_SLEW = 0.005f;
+
+	private static final int MAGIC = 0x4c4d5852;
+	private static final long SEND_INTERVAL = 200000000L;
+	private static final long AUTOMATION_INTERVAL = SEND_INTERVAL / 4;
+	private static final long PEER_TIMEOUT = 5000000000L;
+	private static final float SLEW_SECONDS = 2.0f;
+	private static final int MAX_ECHOES = 48;
+	private static final int OFFSET_SAMPLES = 8;
+
+	/**
+	 * The shared timeline, in terms of the local clock.
+	 */
+	private static class Timeline {
+		final long version;
+		final long author;
+		final double bpm;
+		final long origin;
+		final boolean running;
+		Timeline(long version, long author, double bpm, long origin, boolean running){
+			this.version = version;
+			this.author = author;
+			this.bpm = bpm;
+			this.origin = origin;
+			this.running = running;
+		}
+		boolean newerThan(Timeline t){
+			return version != t.version ? version > t.version : author > t.author;
+		}
+	}
+
+	/**
+	 * What we know about another node.
+	 */
+	private static class Peer {
+		long lastSeen;
+		long lastSendTime;
+		long lastReceiveTime;
+		final long[] roundTrips = new long[OFFSET_SAMPLES];
+		final long[] offsets = new long[OFFSET_SAMPLES];
+		int samples;
+		long offset;
+		boolean synced;
+		void addSample(long roundTrip, long offset){
+			roundTrips[samples % OFFSET_SAMPLES] = roundTrip;
+			offsets[samples % OFFSET_SAMPLES] = offset;
+			samples++;
+			int best = 0;
+			for(int i = 1; i < Math.min(samples, OFFSET_SAMPLES); i++) if (roundTrips[i] < roundTrips[best]) best = i;
+			this.offset = offsets[best];
+			synced = true;
+		}
+	}
+
+	private final long id;
+	private final InetAddress group;
+	private final int port;
+	private final MulticastSocket socket;
+	private final Map<Long, Peer> peers;
+	private final Thread thread;
+
+	private volatile Timeline timeline;
+	private volatile boolean jump;
+	private volatile boolean retempo;
+	private long latestVersion;
+	private int echoCursor;
+	private boolean automating; // Only used by the click thread.
+	private boolean broadcasting; // Only used by the network thread.
+	private final TransportSnapshot snapshot = new TransportSnapshot();
+	private volatile int nominalDuration;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new NetworkClickTrack, using the default multicast group and port.
+	 *
+	 * The sample rate will be set to the default value of 44100.
+	 *
+	 * @param minim The Minim interface to use.
+	 * @param bpm The (initial) tempo, in beats per minute. Ignored if other nodes are already running.
+	 * @param beatsPerMeasure The number of beats per measure.
+	 * @throws IOException If the multicast socket could not be opened.
+	 */
+	public NetworkClickTrack(Minim minim, float bpm, int beatsPerMeasure) throws IOException {
+		this(minim, 44100, (int) (60/(bpm/beatsPerMeasure) * 44100), beatsPerMeasure, InetAddress.getByName(DEFAULT_GROUP), DEFAULT_PORT);
+	}
+
+	/**
+	 * Creates a new NetworkClickTrack.
+	 *
+	 * @param minim The Minim interface to use.
+	 * @param sampleRate The sample rate.
+	 * @param measureDuration The (initial) duration, in samples, of one measure. Ignored if other nodes are already running.
+	 * @param beatsPerMeasure The number of beats per measure.
+	 * @param group The multicast group shared by all nodes.
+	 * @param port The UDP port shared by all nodes.
+	 * @throws IOException If the multicast socket could not be opened.
+	 */
+	public NetworkClickTrack(Minim minim, int sampleRate, int measureDuration, int beatsPerMeasure, InetAddress group, int port) throws IOException {
+		super(minim, sampleRate, measureDuration, beatsPerMeasure);
+		this.group = group;
+		this.port = port;
+		id = new Random().nextLong();
+		peers = new HashMap<Long, Peer>();
+		nominalDuration = measureDuration;
+		timeline = new Timeline(0, id, bpmOf(measureDuration), System.nanoTime(), false);
+		socket = open();
+		thread = startThread();
+	}
+
+	/**
+	 * Creates a new NetworkClickTrack without an audio output.
+	 *
+	 * The NetworkClickTrack does not advance by itself; it is driven by the {@link StreamOutput} of a {@link LoopMixer} that uses it.
+	 *
+	 * @param sampleRate The sample rate.
+	 * @param measureDuration The (initial) duration, in samples, of one measure. Ignored if other nodes are already running.
+	 * @param beatsPerMeasure The number of beats per measure.
+	 * @param group The multicast group shared by all nodes.
+	 * @param port The UDP port shared by all nodes.
+	 * @throws IOException If the multicast socket could not be opened.
+	 */
+	public NetworkClickTrack(int sampleRate, int measureDuration, int beatsPerMeasure, InetAddress group, int port) throws IOException {
+		super(sampleRate, measureDuration, beatsPerMeasure);
+		this.group = group;
+		this.port = port;
+		id = new Random().nextLong();
+		peers = new HashMap<Long, Peer>();
+		nominalDuration = measureDuration;
+		timeline = new Timeline(0, id, bpmOf(measureDuration), System.nanoTime(), false);
+		socket = open();
+		thread = startThread();
+	}
+
+	private MulticastSocket open() throws IOException {
+		MulticastSocket s = new MulticastSocket(port);
+		s.setLoopbackMode(false);
+		s.setTimeToLive(1);
+		s.setSoTimeout((int) (SEND_INTERVAL / 4000000));
+		s.joinGroup(group);
+		return s;
+	}
+
+	private Thread startThread() {
+		Thread t = new Thread(new Runnable() {
+			@Override public void run() {
+				communicate();
+			}
+		}, "NetworkClickTrack");
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	private double bpmOf(int measureDuration) {
+		return 60.0 * sampleRate * beats / measureDuration;
+	}
+
+	private long measureNanos(Timeline t) {
+		return (long) (60e9 / t.bpm * beats);
+	}
+
+	/**
+	 * Returns the position in the measure, in samples of the nominal measure duration, the timeline is at at the specified time.
+	 */
+	private double targetPosition(Timeline t, long time) {
+		long period = measureNanos(t);
+		long since = (time - t.origin) % period;
+		if (since < 0) since += period;
+		return since / (double) period * nominalDuration;
+	}
+
+	/**
+	 * Returns the origin of a timeline at the specified tempo that is at the current position of this ClickTrack at the specified time.
+	 */
+	private long originFor(double bpm, long time) {
+		long period = (long) (60e9 / bpm * beats);
+		return time - (long) (position / (double) duration * period);
+	}
+
+	@Override protected void bufferStarted(long time) {
+		Timeline t = timeline;
+		if (t == null) return; // Not fully constructed yet.
+		if (retempo){
+			// A tempo received while paused, which is applied here so the listeners hear about it on this thread.
+			retempo = false;
+			super.setExactMeasureDuration(nominalDuration);
+		}
+		if (jump){
+			jump = false;
+			position = (int) (targetPosition(t, time) / nominalDuration * duration) % duration;
+			for(RhythmListener l : rhythmListeners) l.positionChanged();
+		}
+		if (isAutomated()){
+			// This node leads: it follows the automation, and the network thread sends the tempo to the others.
+			automating = true;
+			return;
+		}
+		if (automating){
+			automating = false;
+			nominalDuration = duration;
+		}
+		int nominal = nominalDuration;
+		int target = nominal;
+		if (running && t.running){
+			double error = targetPosition(t, time) - position / (double) duration * nominal;
+			if (error >  nominal / 2.0) error -= nominal;
+			if (error < -nominal / 2.0) error += nominal;
+			if (Math.abs(error) > sampleRate / 2000){
+				double factor = 1 + Math.max(-MAX_SLEW, Math.min(MAX_SLEW, error / (sampleRate * SLEW_SECONDS)));
+				target = (int) Math.round(nominal / factor);
+			}
+		}
+		// Loops follow the measure duration by themselves, so the listeners don't need to hear about these tiny changes.
+		rescale(target);
+	}
+
+	private synchronized void change(double bpm, long origin, boolean running) {
+		timeline = new Timeline(Math.max(timeline.version, latestVersion) + 1, id, bpm, origin, running);
+		send();
+	}
+
+	/**
+	 * Makes the ClickTrack jump to the position of the timeline at the start of the next buffer.
+	 *
+	 * The jump is made by the thread that generates the click, so {@link RhythmListener#positionChanged()} is called from
+	 * the same thread as the other events, and never from the network thread.
+	 */
+	private void jumpToTimeline() {
+		jump = true;
+	}
+
+	/**
+	 * Changes the tempo of all nodes.
+	 *
+	 * @param duration The new duration, in samples, of one measure.
+	 */
+	@Override public void setExactMeasureDuration(int duration) {
+		long now = System.nanoTime();
+		double bpm = bpmOf(duration);
+		long origin = originFor(bpm, now);
+		nominalDuration = duration;
+		super.setExactMeasureDuration(duration);
+		change(bpm, origin, timeline.running);
+	}
+
+	/**
+	 * Sends the tempo of the automation to the other nodes, if it changed. Called by the network thread.
+	 */
+	private void broadcastAutomation() {
+		boolean automated = isAutomated();
+		if (!automated && !broadcasting) return;
+		// Once more after the automation finished, to send the final tempo.
+		broadcasting = automated;
+		TransportSnapshot s = getTransport(snapshot);
+		int measure = s.getExactMeasureDuration();
+		double bpm = bpmOf(measure);
+		Timeline t = timeline;
+		if (bpm == t.bpm) return;
+		long period = (long) (60e9 / bpm * beats);
+		long origin = s.getTime() - (long) (s.getExactPosition() / (double) measure * period);
+		nominalDuration = measure;
+		change(bpm, origin, t.running);
+	}
+
+	/**
+	 * Starts all nodes.
+	 *
+	 * If the other nodes are already playing, this node joins them at the right position.
+	 */
+	@Override public void start() {
+		Timeline t = timeline;
+		if (t.running){
+			jumpToTimeline();
+		} else {
+			change(t.bpm, originFor(t.bpm, System.nanoTime()), true);
+		}
+		super.start();
+	}
+
+	/**
+	 * Pauses all nodes.
+	 */
+	@Override public void pause() {
+		super.pause();
+		Timeline t = timeline;
+		change(t.bpm, t.origin, false);
+	}
+
+	/**
+	 * Stops all nodes.
+	 */
+	@Override public void stop() {
+		super.stop();
+		Timeline t = timeline;
+		change(t.bpm, t.origin, false);
+	}
+
+	/**
+	 * Starts all nodes from the beginning of a measure.
+	 */
+	@Override public void restart() {
+		super.restart();
+		change(timeline.bpm, System.nanoTime(), true);
+	}
+
+	/**
+	 * Resets the current measure of all nodes.
+	 */
+	@Override public void rewind() {
+		super.rewind();
+		Timeline t = timeline;
+		change(t.bpm, System.nanoTime(), t.running);
+	}
+
+	/**
+	 * Returns the number of other nodes this node is currently synchronized with.
+	 */
+	public int getPeerCount() {
+		synchronized (peers) {
+			int n = 0;
+			for(Peer p : peers.values()) if (p.synced) n++;
+			return n;
+		}
+	}
+
+	/**
+	 * Returns the tempo shared by all nodes, in beats per minute.
+	 *
+	 * Unlike {@link #getBpm()}, this does not include the small tempo changes used to correct the phase.
+	 */
+	public float getSharedBpm() {
+		return (float) timeline.bpm;
+	}
+
+	/**
+	 * Closes all used resources of the NetworkClickTrack, and leaves the network.
+	 *
+	 * Do not use the NetworkClickTrack after it's closed.
+	 */
+	@Override public void close() {
+		closed = true;
+		thread.interrupt();
+		socket.close();
+		super.close();
+	}
+
+	private void communicate() {
+		byte[] buffer = new byte[1500];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		long nextSend = System.nanoTime();
+		long nextAutomation = nextSend;
+		while (!closed){
+			long now = System.nanoTime();
+			if (now - nextAutomation >= 0){
+				broadcastAutomation();
+				nextAutomation = now + AUTOMATION_INTERVAL;
+			}
+			if (now - nextSend >= 0){
+				send();
+				nextSend = now + SEND_INTERVAL;
+				expirePeers(now);
+			}
+			try {
+				packet.setLength(buffer.length);
+				socket.receive(packet);
+				receive(new DataInputStream(new ByteArrayInputStream(buffer, 0, packet.getLength())), System.nanoTime());
+			} catch (SocketTimeoutException e) {
+				// Time to send again.
+			} catch (IOException e) {
+				if (closed) return;
+			}
+		}
+	}
+
+	private void expirePeers(long now) {
+		synchronized (peers) {
+			Iterator<Peer> i = peers.values().iterator();
+			while (i.hasNext()) if (now - i.next().lastSeen > PEER_TIMEOUT) i.remove();
+		}
+	}
+
+	private synchronized void send() {
+		if (closed) return;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			DataOutputStream out = new DataOutputStream(bytes);
+			Timeline t = timeline;
+			out.writeInt(MAGIC);
+			out.writeLong(id);
+			out.writeLong(t.version);
+			out.writeLong(t.author);
+			out.writeDouble(t.bpm);
+			out.writeLong(t.origin);
+			out.writeBoolean(t.running);
+			synchronized (peers) {
+				// Not every peer fits in one message, so every message echoes the next few, taking turns.
+				int size = peers.size();
+				int n = Math.min(size, MAX_ECHOES);
+				out.writeShort(n);
+				if (n > 0){
+					List<Map.Entry<Long, Peer>> entries = new ArrayList<Map.Entry<Long, Peer>>(peers.entrySet());
+					int first = echoCursor % size;
+					for(int i = 0; i < n; i++){
+						Map.Entry<Long, Peer> e = entries.get((first + i) % size);
+						out.writeLong(e.getKey());
+						out.writeLong(e.getValue().lastSendTime);
+						out.writeLong(e.getValue().lastReceiveTime);
+					}
+					echoCursor = (first + n) % size;
+				}
+			}
+			// The send time is written last, as close to the actual sending as possible.
+			out.writeLong(System.nanoTime());
+			byte[] data = bytes.toByteArray();
+			socket.send(new DatagramPacket(data, data.length, group, port));
+		} catch (IOException e) {
+			// Dropped packets are no problem, the next one will follow soon.
+		}
+	}
+
+	private void receive(DataInputStream in, long receiveTime) throws IOException {
+		if (in.readInt() != MAGIC) return;
+		long sender = in.readLong();
+		if (sender == id) return;
+		long version = in.readLong();
+		long author = in.readLong();
+		double bpm = in.readDouble();
+		long origin = in.readLong();
+		boolean running = in.readBoolean();
+		int echoes = in.readShort();
+		long echoSend = 0, echoReceive = 0;
+		boolean echoed = false;
+		for(int i = 0; i < echoes; i++){
+			long peer = in.readLong();
+			long s = in.readLong();
+			long r = in.readLong();
+			if (peer == id){
+				echoSend = s;
+				echoReceive = r;
+				echoed = true;
+			}
+		}
+		long sendTime = in.readLong();
+
+		Peer p;
+		synchronized (peers) {
+			p = peers.get(sender);
+			if (p == null){
+				p = new Peer();
+				peers.put(sender, p);
+			}
+			p.lastSeen = receiveTime;
+			p.lastSendTime = sendTime;
+			p.lastReceiveTime = receiveTime;
+			if (echoed && echoSend != 0){
+				// NTP style: our send time, their receive time, their send time, our receive time.
+				long roundTrip = (receiveTime - echoSend) - (sendTime - echoReceive);
+				long offset = ((echoReceive - echoSend) + (sendTime - receiveTime)) / 2;
+				if (roundTrip >= 0) p.addSample(roundTrip, offset);
+			}
+			if (!p.synced) return;
+		}
+
+		Timeline remote = new Timeline(version, author, bpm, origin - p.offset, running);
+		synchronized (this) {
+			latestVersion = Math.max(latestVersion, version);
+			Timeline t = timeline;
+			if (remote.newerThan(t) || (remote.version == t.version && remote.author == t.author && sender == author)){
+				adopt(remote);
+			}
+		}
+	}
+
+	private void adopt(Timeline t) {
+		boolean tempoChanged = t.bpm != timeline.bpm;
+		timeline = t;
+		if (tempoChanged){
+			nominalDuration = (int) Math.round(60.0 * sampleRate * beats / t.bpm);
+			if (!running) retempo = true;
+		}
+		if (t.running && !running){
+			jumpToTimeline();
+			super.start();
+		} else if (!t.running && running){
+			super.pause();
+		}
+	}
+
+}
@@ -0,0 +1,58 @@
+package nl.tudelft.ti1100a.audio;
+
+/**
+ * A PredictableRhythm is a {@link Rhythm} that can predict when coming beats and measures will be heard.
+ * 
+ * Visual and lighting threads can use this to schedule against the sound that is actually heard,
+ * instead of against the generated position, which runs ahead of it.
+ * 
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see ClickTrack
+ */
+public interface PredictableRhythm extends Rhythm {
+
+	/**
+	 * Returns the time, in seconds, between generating a sample and hearing it.
+	 */
+	public float getOutputLatency();
+	
+	/**
+	 * Returns which beat of the measure can be heard right now, taking the output latency into account.
+	 */
+	public int getAudibleBeat();
+	
+	/**
+	 * Returns the sample frame of a coming beat, assuming the tempo doesn't change.
+	 * 
+	 * Sample frames are counted from the creation of the rhythm. The beat is heard {@link #getOutputLatency()} after its frame is generated.
+	 * 
+	 * @param n Which beat: 0 for the next beat that will be heard, 1 for the one after that, etc.
+	 */
+	public long getBeatFrame(int n);
+	
+	/**
+	 * Returns the time, as given by {@link System#nanoTime()}, at which a coming beat will be heard, assuming the tempo doesn't change.
+	 * 
+	 * If the rhythm isn't playing, this is the time at which it would be heard if the rhythm started right now.
+	 * 
+	 * @param n Which beat: 0 for the next beat that will be heard, 1 for the one after that, etc.
+	 */
+	public long getBeatTime(int n);
+	
+	/**
+	 * Returns the sample frame of the start of a coming measure, assuming the tempo doesn't change.
+	 * 
+	 * @param n Which measure: 0 for the next measure that will be heard, 1 for the one after that, etc.
+	 * @see #getBeatFrame(int)
+	 */
+	public long getMeasureFrame(int n);
+	
+	/**
+	 * Returns the time, as given by {@link System#nanoTime()}, at which the start of a coming measure will be heard, assuming the tempo doesn't change.
+	 * 
+	 * @param n Which measure: 0 for the next measure that will be heard, 1 for the one after that, etc.
+	 * @see #getBeatTime(int)
+	 */
+	public long getMeasureTime(int n);
+
+}
@@ -0,0 +1,296 @@
+package nl.tudelft.ti1100a.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * The samples of a loop, stored in one of the {@link SampleFormat}s, on or off the Java heap.
+ *
+ * Stereo samples are interleaved (except for {@link SampleFormat#FLOAT} on the heap, which keeps the decoded arrays),
+ * so both channels of a sample share a cache line. Mono samples are only stored once.
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ */
+abstract class SampleBuffer {
+
+	/**
+	 * The number of samples per channel.
+	 */
+	final int length;
+
+	/**
+	 * The number of stored values per sample: 1 for mono, 2 for (interleaved) stereo.
+	 */
+	final int stride;
+
+	private SampleBuffer(int length, int stride) {
+		this.length = length;
+		this.stride = stride;
+	}
+
+	/**
+	 * Returns the sample at the specified index of the left channel.
+	 */
+	abstract float left(int i);
+
+	/**
+	 * Returns the sample at the specified index of the right channel.
+	 */
+	abstract float right(int i);
+
+	/**
+	 * Converts a range of samples to floats, into the start of a window.
+	 *
+	 * The range wraps around at the end, as often as needed. For mono samples, only {@code left} is written.
+	 * This makes one call per block instead of one per sample, so the resampling loops only read a small plain array.
+	 *
+	 * @param from The index of the first sample.
+	 * @param count The number of samples.
+	 * @param left The window for the left channel. Must have at least {@code count} elements.
+	 * @param right The window for the right channel. Must have at least {@code count} elements.
+	 */
+	final void decode(int from, int count, float[] left, float[] right) {
+		from %= length;
+		int at = 0;
+		while (at < count){
+			int n = Math.min(count - at, length - from);
+			decodeRange(from, from + n, left, right, at);
+			at += n;
+			from = 0;
+		}
+	}
+
+	/**
+	 * Converts the samples from index {@code from} up to {@code to} to floats, and stores them in the arrays from index {@code at}.
+	 */
+	abstract void decodeRange(int from, int to, float[] left, float[] right, int at);
+
+	/**
+	 * Returns the format of the samples.
+	 */
+	abstract SampleFormat format();
+
+	/**
+	 * Returns whether the samples are stored outside of the Java heap.
+	 */
+	abstract boolean isOffHeap();
+
+	/**
+	 * Returns the number of bytes used to store the samples.
+	 */
+	long byteSize() {
+		return (long) length * stride * (format() == SampleFormat.FLOAT ? 4 : 2);
+	}
+
+	/**
+	 * Stores samples in the specified format.
+	 *
+	 * @param left The samples of the left channel.
+	 * @param right The samples of the right channel. Can be the same array as {@code left} for mono samples.
+	 * @param format The format to store the samples in.
+	 * @param offHeap Whether to store the samples outside of the Java heap.
+	 */
+	static SampleBuffer create(float[] left, float[] right, SampleFormat format, boolean offHeap) {
+		int stride = left == right ? 1 : 2;
+		int n = Math.min(left.length, right.length);
+		if (format == SampleFormat.FLOAT){
+			if (!offHeap) return new FloatArray(left, right, n);
+			FloatBuffer data = ByteBuffer.allocateDirect(n * stride * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			for(int i = 0; i < n; i++){
+				data.put(left[i]);
+				if (stride == 2) data.put(right[i]);
+			}
+			return new FloatDirect(data, n, stride);
+		}
+		boolean half = format == SampleFormat.HALF_FLOAT;
+		if (offHeap){
+			ShortBuffer data = ByteBuffer.allocateDirect(n * stride * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+			for(int i = 0; i < n; i++){
+				data.put(half ? toHalf(left[i]) : toShort(left[i]));
+				if (stride == 2) data.put(half ? toHalf(right[i]) : toShort(right[i]));
+			}
+			return half ? new HalfDirect(data, n, stride) : new ShortDirect(data, n, stride);
+		} else {
+			short[] data = new short[n * stride];
+			for(int i = 0; i < n; i++){
+				data[i * stride] = half ? toHalf(left[i]) : toShort(left[i]);
+				if (stride == 2) data[i * 2 + 1] = half ? toHalf(right[i]) : toShort(right[i]);
+			}
+			return half ? new HalfArray(data, n, stride) : new ShortArray(data, n, stride);
+		}
+	}
+
+	/**
+	 * Converts a float to a 16-bit sample, scaled by 32768 like the decoders do, so 16-bit audio survives the round trip exactly.
+	 */
+	static short toShort(float x) {
+		int v = Math.round(x * 32768);
+		return (short) (v > Short.MAX_VALUE ? Short.MAX_VALUE : v < Short.MIN_VALUE ? Short.MIN_VALUE : v);
+	}
+
+	static float fromShort(short s) {
+		return s * SHORT_SCALE;
+	}
+
+	private static final float SHORT_SCALE = 1.0f / 32768;
+
+	/**
+	 * Converts a float to IEEE 754 half precision, rounding to the nearest value.
+	 */
+	static short toHalf(float x) {
+		int bits = Float.floatToIntBits(x);
+		int sign = (bits >>> 16) & 0x8000;
+		int abs = bits & 0x7fffffff;
+		if (abs >= 0x7f800000) return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));  // Inf, NaN
+		if (abs >= 0x477ff000) return (short) (sign | 0x7c00);                                    // Too large: Inf
+		if (abs >= 0x38800000) return (short) (sign | ((abs - 0x38000000 + 0x1000) >>> 13));       // Normal
+		if (abs < 0x33000000) return (short) sign;                                                 // Too small: 0
+		int exponent = abs >>> 23;                                                                 // Subnormal
+		int mantissa = (abs & 0x7fffff) | 0x800000;
+		int shift = 126 - exponent;
+		return (short) (sign | ((mantissa + (1 << (shift - 1))) >>> shift));
+	}
+
+	/**
+	 * Converts an IEEE 754 half precision value to a float.
+	 */
+	static float fromHalf(short h) {
+		int sign = (h & 0x8000) << 16;
+		int exponent = (h >>> 10) & 0x1f;
+		int mantissa = h & 0x3ff;
+		if (exponent == 0) return sign == 0 ? mantissa * (1.0f / 16777216) : -mantissa * (1.0f / 16777216);
+		if (exponent == 31) return Float.intBitsToFloat(sign | 0x7f800000 | mantissa << 13);
+		return Float.intBitsToFloat(sign | (exponent + 112) << 23 | mantissa << 13);
+	}
+
+	private static final class FloatArray extends SampleBuffer {
+		private final float[] left;
+		private final float[] right;
+		FloatArray(float[] left, float[] right, int length) {
+			super(length, left == right ? 1 : 2);
+			this.left = left;
+			this.right = right;
+		}
+		@Override float left(int i)  { return left[i];  }
+		@Override float right(int i) { return right[i]; }
+		@Override void decodeRange(int from, int to, float[] l, float[] r, int at) {
+			System.arraycopy(left, from, l, at, to - from);
+			if (stride == 2) System.arraycopy(right, from, r, at, to - from);
+		}
+		@Override SampleFormat format() { return SampleFormat.FLOAT; }
+		@Override boolean isOffHeap()   { return false; }
+	}
+
+	private static final class FloatDirect extends SampleBuffer {
+		private final FloatBuffer data;
+		FloatDirect(FloatBuffer data, int length, int stride) {
+			super(length, stride);
+			this.data = data;
+		}
+		@Override float left(int i)  { return data.get(i * stride);              }
+		@Override float right(int i) { return data.get(i * stride + stride - 1); }
+		@Override void decodeRange(int from, int to, float[] l, float[] r, int at) {
+			if (stride == 1){
+				for(int i = from; i < to; i++) l[at++] = data.get(i);
+			} else {
+				for(int i = from; i < to; i++){
+					l[at]   = data.get(2*i);
+					r[at++] = data.get(2*i + 1);
+				}
+			}
+		}
+		@Override SampleFormat format() { return SampleFormat.FLOAT; }
+		@Override boolean isOffHeap()   { return true; }
+	}
+
+	private static final class ShortArray extends SampleBuffer {
+		private final short[] data;
+		ShortArray(short[] data, int length, int stride) {
+			super(length, stride);
+			this.data = data;
+		}
+		@Override float left(int i)  { return fromShort(data[i * stride]);              }
+		@Override float right(int i) { return fromShort(data[i * stride + stride - 1]); }
+		@Override void decodeRange(int from, int to, float[] l, float[] r, int at) {
+			if (stride == 1){
+				for(int i = from; i < to; i++) l[at++] = data[i] * SHORT_SCALE;
+			} else {
+				for(int i = from; i < to; i++){
+					l[at]   = data[2*i]     * SHORT_SCALE;
+					r[at++] = data[2*i + 1] * SHORT_SCALE;
+				}
+			}
+		}
+		@Override SampleFormat format() { return SampleFormat.SHORT; }
+		@Override boolean isOffHeap()   { return false; }
+	}
+
+	private static final class ShortDirect extends SampleBuffer {
+		private final ShortBuffer data;
+		ShortDirect(ShortBuffer data, int length, int stride) {
+			super(length, stride);
+			this.data = data;
+		}
+		@Override float left(int i)  { return fromShort(data.get(i * stride));              }
+		@Override float right(int i) { return fromShort(data.get(i * stride + stride - 1)); }
+		@Override void decodeRange(int from, int to, float[] l, float[] r, int at) {
+			if (stride == 1){
+				for(int i = from; i < to; i++) l[at++] = data.get(i) * SHORT_SCALE;
+			} else {
+				for(int i = from; i < to; i++){
+					l[at]   = data.get(2*i)     * SHORT_SCALE;
+					r[at++] = data.get(2*i + 1) * SHORT_SCALE;
+				}
+			}
+		}
+		@Override SampleFormat format() { return SampleFormat.SHORT; }
+		@Override boolean isOffHeap()   { return true; }
+	}
+
+	private static final class HalfArray extends SampleBuffer {
+		private final short[] data;
+		HalfArray(short[] data, int length, int stride) {
+			super(length, stride);
+			this.data = data;
+		}
+		@Override float left(int i)  { return fromHalf(data[i * stride]);              }
+		@Override float right(int i) { return fromHalf(data[i * stride + stride - 1]); }
+		@Override void decodeRange(int from, int to, float[] l, float[] r, int at) {
+			if (stride == 1){
+				for(int i = from; i < to; i++) l[at++] = fromHalf(data[i]);
+			} else {
+				for(int i = from; i < to; i++){
+					l[at]   = fromHalf(data[2*i]);
+					r[at++] = fromHalf(data[2*i + 1]);
+				}
+			}
+		}
+		@Override SampleFormat format() { return SampleFormat.HALF_FLOAT; }
+		@Override boolean isOffHeap()   { return false; }
+	}
+
+	private static final class HalfDirect extends SampleBuffer {
+		private final ShortBuffer data;
+		HalfDirect(ShortBuffer data, int length, int stride) {
+			super(length, stride);
+			this.data = data;
+		}
+		@Override float left(int i)  { return fromHalf(data.get(i * stride));              }
+		@Override float right(int i) { return fromHalf(data.get(i * stride + stride - 1)); }
+		@Override void decodeRange(int from, int to, float[] l, float[] r, int at) {
+			if (stride == 1){
+				for(int i = from; i < to; i++) l[at++] = fromHalf(data.get(i));
+			} else {
+				for(int i = from; i < to; i++){
+					l[at]   = fromHalf(data.get(2*i));
+					r[at++] = fromHalf(data.get(2*i + 1));
+				}
+			}
+		}
+		@Override SampleFormat format() { return SampleFormat.HALF_FLOAT; }
+		@Override boolean isOffHeap()   { return true; }
+	}
+
+}
@@ -0,0 +1,27 @@
+package nl.tudelft.ti1100a.audio;
+
+/**
+ * The format in which the samples of a {@link LoopMixer.Loop} are kept in memory.
+ * 
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see LoopMixer#setSampleFormat(SampleFormat, boolean)
+ */
+public enum SampleFormat {
+	
+	/**
+	 * 32-bit floating point samples. This is the default, and keeps the decoded audio exactly as it is.
+	 */
+	FLOAT,
+	
+	/**
+	 * 16-bit integer samples. This uses half the memory, and loses nothing for audio that came from 16-bit files.
+	 * Samples are scaled by 32768, like the decoders of 16-bit files do, and clipped to the 16-bit range.
+	 */
+	SHORT,
+	
+	/**
+	 * 16-bit (IEEE 754 half precision) floating point samples. This uses half the memory, and keeps more precision than {@link #SHORT} for quiet audio.
+	 */
+	HALF_FLOAT
+	
+}
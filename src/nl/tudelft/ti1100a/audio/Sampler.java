@@ -0,0 +1,389 @@
+package nl.tudelft.ti1100a.audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ddf.minim.AudioSample;
+
+/**
+ * A Sampler plays one-shot sounds, like drum hits and stabs, in a {@link LoopMixer}, quantized to its {@link Rhythm}.
+ *
+ * It has a fixed number of preallocated voices. Triggering a sound doesn't allocate anything and doesn't block,
+ * so it can be done hundreds of times per second from any thread. The sounds are rendered by the audio thread of the LoopMixer,
+ * together with the loops, and start at exactly the requested position in the rhythm.
+ * When all voices are in use, the voice that was started first is stolen. It is faded out in a few milliseconds, to avoid a click.
+ *
+ * Example, playing a kick on the next beat:
+ *
+ * <pre>
+ * Sampler sampler = new Sampler(mixer, 32);
+ * Sampler.Sound kick = sampler.load("kick.wav");
+ * ...
+ * sampler.trigger(kick, 1.0f, 1);
+ * </pre>
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ */
+public class Sampler {
+
+	/**
+	 * A sound that can be triggered by a {@link Sampler}.
+	 *
+	 * Sounds are created using {@link Sampler#load(String)} or {@link Sampler#createSound(float[], float[], float)}.
+	 */
+	public static final class Sound {
+
+		final SampleBuffer samples;
+		final float sampleRate;
+
+		private Sound(SampleBuffer samples, float sampleRate) {
+			this.samples = samples;
+			this.sampleRate = sampleRate;
+		}
+
+		/**
+		 * Returns the duration of the sound, in seconds.
+		 */
+		public float getDuration() {
+			return samples.length / sampleRate;
+		}
+
+	}
+
+	/**
+	 * The duration, in seconds, of the fade out of a stolen voice.
+	 */
+	private static final float STEAL_FADE = 0.005f;
+
+	private final LoopMixer mixer;
+
+	// The voices, owned by the audio thread.
+	private final Sound[] voiceSound;
+	private final float[] voicePosition;
+	private final float[] voiceStep;
+	private final float[] voiceVolume;
+	private final int[] voiceDelay;
+	private final long[] voiceOrder;
+	private long order;
+
+	// The stolen voices that are fading out, owned by the audio thread.
+	private final Sound[] fadeSound;
+	private final float[] fadePosition;
+	private final float[] fadeStep;
+	private final float[] fadeVolume;
+	private final int[] fadeRemaining;
+	private final int fadeLength;
+
+	// The audio thread converts the samples a voice reads into these, a block at a time.
+	private static final int WINDOW = 512;
+	private final float[] windowLeft = new float[WINDOW];
+	private final float[] windowRight = new float[WINDOW];
+
+	// The triggers that haven't been picked up by the audio thread yet: a bounded lock-free queue with many producers and one consumer.
+	private final Sound[] triggerSound;
+	private final float[] triggerVolume;
+	private final float[] triggerGrid;
+	private final AtomicLongArray triggerSequence;
+	private final AtomicLong tail;
+	private final int mask;
+	private long head;
+
+	private volatile int active;
+	private final AtomicLong stolen;
+	private final AtomicLong dropped;
+
+	/**
+	 * Creates a new Sampler and adds it to a {@link LoopMixer}.
+	 *
+	 * @param mixer The LoopMixer to play the sounds in.
+	 * @param voices The maximum number of sounds that can play at the same time.
+	 */
+	public Sampler(LoopMixer mixer, int voices) {
+		if (voices < 1) throw new IllegalArgumentException("A Sampler needs at least one voice");
+		this.mixer = mixer;
+		voiceSound = new Sound[voices];
+		voicePosition = new float[voices];
+		voiceStep = new float[voices];
+		voiceVolume = new float[voices];
+		voiceDelay = new int[voices];
+		voiceOrder = new long[voices];
+
+		fadeSound = new Sound[voices];
+		fadePosition = new float[voices];
+		fadeStep = new float[voices];
+		fadeVolume = new float[voices];
+		fadeRemaining = new int[voices];
+		fadeLength = Math.max(1, (int) (STEAL_FADE * mixer.sampleRate()));
+
+		int size = 64;
+		while (size < voices * 4) size <<= 1;
+		triggerSound = new Sound[size];
+		triggerVolume = new float[size];
+		triggerGrid = new float[size];
+		triggerSequence = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++) triggerSequence.set(i, i);
+		tail = new AtomicLong();
+		mask = size - 1;
+
+		stolen = new AtomicLong();
+		dropped = new AtomicLong();
+
+		mixer.samplers.add(this);
+	}
+
+	/**
+	 * Loads a sound from a file.
+	 *
+	 * The samples are stored in the {@link SampleFormat} of the LoopMixer.
+	 *
+	 * @param filename The filename of the sound.
+	 */
+	public Sound load(String filename) {
+		AudioSample audio = mixer.minim.loadSample(filename);
+		float[] left = audio.getChannel(1);
+		float[] right = audio.getFormat().getChannels() >= 2 ? audio.getChannel(2) : left;
+		Sound s = createSound(left, right, audio.sampleRate());
+		// The decoded floats are not used anymore if they were converted.
+		if (s.samples.format() != SampleFormat.FLOAT || s.samples.isOffHeap()) audio.close();
+		return s;
+	}
+
+	/**
+	 * Creates a sound from samples.
+	 *
+	 * For a mono sound, {@code left} and {@code right} can be the same array.
+	 * The samples are stored in the {@link SampleFormat} of the LoopMixer.
+	 *
+	 * @param left The samples of the left channel.
+	 * @param right The samples of the right channel.
+	 * @param sampleRate The sample rate of the sound.
+	 */
+	public Sound createSound(float[] left, float[] right, float sampleRate) {
+		return new Sound(SampleBuffer.create(left, right, mixer.getSampleFormat(), mixer.isOffHeap()), sampleRate);
+	}
+
+	/**
+	 * Plays a sound right away, at its original volume.
+	 *
+	 * @param sound The sound to play.
+	 * @return False if the sound was dropped because too many sounds were triggered at once.
+	 */
+	public boolean trigger(Sound sound) {
+		return trigger(sound, 1.0f, 0);
+	}
+
+	/**
+	 * Plays a sound at the next point on the grid of the {@link Rhythm}.
+	 *
+	 * If the rhythm isn't playing, the sound is played right away.
+	 *
+	 * @param sound The sound to play.
+	 * @param volume The volume, as a factor of the original (ie. 1 for 100%).
+	 * @param grid The distance between the points of the grid, in beats. For example, 1 for the next beat, 0.25 for the next sixteenth note
+	 *             (in 4/4), or the number of beats per measure for the next measure. 0 to play right away.
+	 * @return False if the sound was dropped because too many sounds were triggered at once.
+	 */
+	public boolean trigger(Sound sound, float volume, float grid) {
+		long p = tail.get();
+		while (true){
+			int i = (int) (p & mask);
+			long s = triggerSequence.get(i);
+			if (s == p){
+				if (tail.compareAndSet(p, p + 1)){
+					triggerSound[i] = sound;
+					triggerVolume[i] = volume;
+					triggerGrid[i] = grid;
+					triggerSequence.lazySet(i, p + 1);
+					return true;
+				}
+				p = tail.get();
+			} else if (s < p){
+				dropped.incrementAndGet();
+				return false;
+			} else {
+				p = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Returns the maximum number of sounds that can play at the same time.
+	 */
+	public int getVoiceCount() {
+		return voiceSound.length;
+	}
+
+	/**
+	 * Returns the number of voices that were playing (or waiting to start) during the last buffer.
+	 */
+	public int getActiveVoiceCount() {
+		return active;
+	}
+
+	/**
+	 * Returns the number of times a playing voice was stolen to play a new sound.
+	 */
+	public long getStolenCount() {
+		return stolen.get();
+	}
+
+	/**
+	 * Returns the number of triggers that were dropped because too many sounds were triggered at once.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Removes the Sampler from the {@link LoopMixer}.
+	 */
+	public void remove() {
+		mixer.samplers.remove(this);
+	}
+
+	/**
+	 * Starts the new triggers and adds the playing voices to the mix. Called by the audio thread of the LoopMixer.
+	 *
+	 * If {@code left} and {@code right} are the same array, a mono mix is rendered.
+	 */
+	void render(float[] left, float[] right) {
+		startTriggers();
+		int n = left.length;
+		int count = 0;
+		for(int v = 0; v < voiceSound.length; v++){
+			Sound sound = voiceSound[v];
+			if (sound == null) continue;
+			count++;
+			int start = voiceDelay[v];
+			if (start >= n){
+				voiceDelay[v] -= n;
+				continue;
+			}
+			voiceDelay[v] = 0;
+			float position = play(sound.samples, voicePosition[v], voiceStep[v], voiceVolume[v], 0, left, right, start, n);
+			if ((int) position >= sound.samples.length) voiceSound[v] = null;
+			voicePosition[v] = position;
+		}
+		for(int f = 0; f < fadeSound.length; f++){
+			Sound sound = fadeSound[f];
+			if (sound == null) continue;
+			int remaining = fadeRemaining[f];
+			int end = Math.min(n, remaining);
+			float volume = fadeVolume[f] * remaining / fadeLength;
+			float position = play(sound.samples, fadePosition[f], fadeStep[f], volume, volume / remaining, left, right, 0, end);
+			fadeRemaining[f] = remaining - end;
+			if (fadeRemaining[f] == 0 || (int) position >= sound.samples.length) fadeSound[f] = null;
+			fadePosition[f] = position;
+		}
+		active = count;
+	}
+
+	/**
+	 * Adds a sound to the mix, until the end of the sound.
+	 *
+	 * @param decay The amount by which the volume decreases after every sample.
+	 * @return The new position in the sound.
+	 */
+	private float play(SampleBuffer samples, float position, float step, float volume, float decay, float[] left, float[] right, int from, int to) {
+		boolean mono = left == right;
+		int length = samples.length;
+		float[] sourceRight = samples.stride == 1 ? windowLeft : windowRight;
+		int i = from;
+		while (i < to){
+			int base = (int) position;
+			if (base >= length) break;
+			// Convert the samples the rest of the block reads, plus a few for the interpolation and rounding, as far as they fit.
+			int count = (int) Math.min(Math.min(length - base, WINDOW), (to - i) * step + 3);
+			samples.decode(base, count, windowLeft, windowRight);
+			for(; i < to; i++){
+				int index = (int) position;
+				if (index >= length) break;
+				int k = index - base;
+				int next = index + 1 < length ? k + 1 : k;
+				if (next >= count) break; // Convert the next part.
+				float t = position - index;
+				float l = windowLeft[k];
+				float r = sourceRight[k];
+				l = (l + (windowLeft[next]  - l) * t) * volume;
+				r = (r + (sourceRight[next] - r) * t) * volume;
+				if (mono){
+					left[i] += (l + r) / 2.0f;
+				} else {
+					left[i]  += l;
+					right[i] += r;
+				}
+				position += step;
+				volume -= decay;
+			}
+		}
+		return position;
+	}
+
+	private void startTriggers() {
+		Rhythm rhythm = mixer.rhythm;
+		float sampleRate = mixer.sampleRate();
+		while (true){
+			int i = (int) (head & mask);
+			if (triggerSequence.get(i) != head + 1) return;
+			Sound sound = triggerSound[i];
+			float volume = triggerVolume[i];
+			float grid = triggerGrid[i];
+			triggerSound[i] = null;
+			triggerSequence.lazySet(i, head + mask + 1);
+			head++;
+
+			int delay = 0;
+			if (grid > 0 && rhythm.isPlaying()){
+				int spacing = Math.max(1, Math.round(grid * rhythm.getExactMeasureDuration() / rhythm.getBeatsPerMeasure()));
+				int position = rhythm.getExactMeasurePosition();
+				delay = (spacing - position % spacing) % spacing;
+				// The measure can be a bit longer than a whole number of grid points; the next measure starts the grid again.
+				int untilMeasure = rhythm.getExactMeasureDuration() - position;
+				if (delay > untilMeasure) delay = untilMeasure;
+			}
+
+			int v = freeVoice();
+			voiceSound[v] = sound;
+			voicePosition[v] = 0;
+			voiceStep[v] = sound.sampleRate / sampleRate;
+			voiceVolume[v] = volume;
+			voiceDelay[v] = delay;
+			voiceOrder[v] = order++;
+		}
+	}
+
+	/**
+	 * Returns a free voice, or steals the oldest one.
+	 */
+	private int freeVoice() {
+		int oldest = 0;
+		for(int v = 0; v < voiceSound.length; v++){
+			if (voiceSound[v] == null) return v;
+			if (voiceOrder[v] < voiceOrder[oldest]) oldest = v;
+		}
+		stolen.incrementAndGet();
+		// A voice that is still waiting to start isn't heard yet, so it doesn't need to fade out.
+		if (voiceDelay[oldest] == 0) fadeOut(oldest);
+		return oldest;
+	}
+
+	/**
+	 * Lets a voice fade out, so it can be reused right away. When many voices are stolen at once, the fade that is almost done is cut short.
+	 */
+	private void fadeOut(int v) {
+		int f = 0;
+		for(int i = 0; i < fadeSound.length; i++){
+			if (fadeSound[i] == null){
+				f = i;
+				break;
+			}
+			if (fadeRemaining[i] < fadeRemaining[f]) f = i;
+		}
+		fadeSound[f] = voiceSound[v];
+		fadePosition[f] = voicePosition[v];
+		fadeStep[f] = voiceStep[v];
+		fadeVolume[f] = voiceVolume[v];
+		fadeRemaining[f] = fadeLength;
+	}
+
+}
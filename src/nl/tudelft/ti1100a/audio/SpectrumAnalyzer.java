@@ -0,0 +1,303 @@
+package nl.tudelft.ti1100a.audio;
+
+/**
+ * A SpectrumAnalyzer analyzes the audio captured by an {@link AudioTap} on its own thread.
+ *
+ * It runs a windowed FFT over the tapped audio (mixed to mono), and computes the energy in a number of
+ * logarithmically spaced frequency bands and detects onsets using the spectral flux.
+ * The results can be read from any thread at any time, without locking.
+ *
+ * Example:
+ *
+ * <pre>
+ * AudioTap tap = new AudioTap(8192);
+ * loop.addTap(tap);
+ * SpectrumAnalyzer analyzer = new SpectrumAnalyzer(tap, mixer.sampleRate(), 1024, 16);
+ * analyzer.start();
+ * ...
+ * float bass = analyzer.getBandEnergy(0);
+ * </pre>
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see AudioTap
+ */
+public class SpectrumAnalyzer implements Runnable {
+
+	private static class Result {
+		final float[] spectrum;
+		final float[] bands;
+		final long onsets;
+		final long lastOnset;
+		final long frames;
+		Result(float[] spectrum, float[] bands, long onsets, long lastOnset, long frames){
+			this.spectrum = spectrum;
+			this.bands = bands;
+			this.onsets = onsets;
+			this.lastOnset = lastOnset;
+			this.frames = frames;
+		}
+	}
+
+	private final AudioTap tap;
+	private final float sampleRate;
+	private final FFT fft;
+	private final int hop;
+	private final int[] bandEdges;
+
+	private final float[] window;
+	private final float[] historyLeft;
+	private final float[] historyRight;
+	private final float[] re;
+	private final float[] im;
+	private final float[] previousSpectrum;
+	private final float[] flux;
+
+	private float sensitivity;
+	private long position;
+	private int fluxIndex;
+	private float previousFlux;
+	private long onsets;
+	private long lastOnset;
+	private long frames;
+
+	private volatile Result result;
+	private volatile boolean running;
+	private Thread thread;
+
+	/**
+	 * Creates a new SpectrumAnalyzer.
+	 *
+	 * @param tap The {@link AudioTap} to read the audio from.
+	 * @param sampleRate The sample rate of the tapped audio.
+	 * @param fftSize The size of the FFT window, in samples. Must be a power of two.
+	 * @param bands The number of frequency bands. At most {@code fftSize / 2 - 1}, since every band needs at least one bin, and the DC bin is not used.
+	 */
+	public SpectrumAnalyzer(AudioTap tap, float sampleRate, int fftSize, int bands) {
+		if (bands < 1 || bands > fftSize / 2 - 1) throw new IllegalArgumentException("Number of bands must be between 1 and " + (fftSize / 2 - 1));
+		this.tap = tap;
+		this.sampleRate = sampleRate;
+		fft = new FFT(fftSize);
+		hop = fftSize / 2;
+		sensitivity = 1.5f;
+
+		window = new float[fftSize];
+		for(int i = 0; i < fftSize; i++) window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (fftSize - 1)));
+
+		int bins = fftSize / 2;
+		bandEdges = new int[bands + 1];
+		for(int b = 0; b <= bands; b++){
+			bandEdges[b] = (int) Math.round(Math.pow(bins, b / (double) bands));
+			if (b > 0 && bandEdges[b] <= bandEdges[b-1]) bandEdges[b] = bandEdges[b-1] + 1;
+			// Leave at least one bin for each of the remaining bands.
+			bandEdges[b] = Math.min(bandEdges[b], bins - (bands - b));
+		}
+		bandEdges[bands] = bins;
+
+		historyLeft = new float[fftSize];
+		historyRight = new float[fftSize];
+		re = new float[fftSize];
+		im = new float[fftSize];
+		previousSpectrum = new float[bins];
+		flux = new float[43];
+
+		result = new Result(new float[bins], new float[bands], 0, -1, 0);
+	}
+
+	/**
+	 * Starts analyzing on a new (daemon) thread.
+	 *
+	 * If the analyzer is already running, nothing happens.
+	 */
+	public synchronized void start() {
+		if (running) return;
+		running = true;
+		tap.skip();
+		thread = new Thread(this, "SpectrumAnalyzer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops analyzing, and waits until the analyzing thread has finished. The last results stay available.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (thread == null) return;
+		thread.interrupt();
+		boolean interrupted = false;
+		while (thread.isAlive()){
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		thread = null;
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Returns whether the analyzer is currently running or not.
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Changes how easily an onset is detected.
+	 *
+	 * @param sensitivity The factor by which the spectral flux has to exceed its recent average to count as an onset. (1.5 by default.)
+	 */
+	public void setOnsetThreshold(float sensitivity) {
+		this.sensitivity = sensitivity;
+	}
+
+	/** Don't call this method directly, use {@link #start()}. */
+	@Override public void run() {
+		long hopNanos = (long) (hop / sampleRate * 1e9);
+		while (running){
+			if (tap.available() < hop){
+				try {
+					Thread.sleep(Math.max(1, hopNanos / 4000000));
+				} catch (InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+			analyze();
+		}
+	}
+
+	private void analyze() {
+		int size = fft.size();
+		System.arraycopy(historyLeft, hop, historyLeft, 0, size - hop);
+		System.arraycopy(historyRight, hop, historyRight, 0, size - hop);
+		tap.read(historyLeft, historyRight, size - hop, hop);
+		position += hop;
+
+		for(int i = 0; i < size; i++){
+			re[i] = (historyLeft[i] + historyRight[i]) * 0.5f * window[i];
+			im[i] = 0;
+		}
+		fft.forward(re, im);
+
+		int bins = size / 2;
+		float[] spectrum = new float[bins];
+		float f = 0;
+		for(int i = 0; i < bins; i++){
+			spectrum[i] = (float) Math.sqrt(re[i] * re[i] + im[i] * im[i]) * 2 / size;
+			float d = spectrum[i] - previousSpectrum[i];
+			if (d > 0) f += d;
+			previousSpectrum[i] = spectrum[i];
+		}
+
+		float[] bands = new float[bandEdges.length - 1];
+		for(int b = 0; b < bands.length; b++){
+			float e = 0;
+			for(int i = bandEdges[b]; i < bandEdges[b+1]; i++) e += spectrum[i] * spectrum[i];
+			bands[b] = e;
+		}
+
+		float mean = 0;
+		for(float x : flux) mean += x;
+		mean /= flux.length;
+		if (f > mean * sensitivity && f > previousFlux && f > 1e-4f){
+			onsets++;
+			lastOnset = position - hop;
+		}
+		previousFlux = f;
+		flux[fluxIndex++ % flux.length] = f;
+
+		frames++;
+		result = new Result(spectrum, bands, onsets, lastOnset, frames);
+	}
+
+	/**
+	 * Returns the number of frequency bins in the spectrum.
+	 */
+	public int specSize() {
+		return fft.size() / 2;
+	}
+
+	/**
+	 * Returns the number of frequency bands.
+	 */
+	public int bandCount() {
+		return bandEdges.length - 1;
+	}
+
+	/**
+	 * Returns the center frequency, in Hz, of the specified frequency bin.
+	 *
+	 * @param i The index of the bin.
+	 */
+	public float getBinFrequency(int i) {
+		return i * sampleRate / fft.size();
+	}
+
+	/**
+	 * Returns the lowest frequency, in Hz, of the specified band.
+	 *
+	 * @param band The index of the band.
+	 */
+	public float getBandFrequency(int band) {
+		return getBinFrequency(bandEdges[band]);
+	}
+
+	/**
+	 * Copies the latest magnitude spectrum.
+	 *
+	 * @param into The array to copy the spectrum into. Must have at least {@link #specSize()} elements.
+	 * @return The array that was passed in.
+	 */
+	public float[] getSpectrum(float[] into) {
+		float[] s = result.spectrum;
+		System.arraycopy(s, 0, into, 0, s.length);
+		return into;
+	}
+
+	/**
+	 * Copies the latest band energies.
+	 *
+	 * @param into The array to copy the energies into. Must have at least {@link #bandCount()} elements.
+	 * @return The array that was passed in.
+	 */
+	public float[] getBandEnergies(float[] into) {
+		float[] b = result.bands;
+		System.arraycopy(b, 0, into, 0, b.length);
+		return into;
+	}
+
+	/**
+	 * Returns the latest energy of the specified band.
+	 *
+	 * @param band The index of the band.
+	 */
+	public float getBandEnergy(int band) {
+		return result.bands[band];
+	}
+
+	/**
+	 * Returns the number of onsets that have been detected so far.
+	 *
+	 * Comparing this to the value of a previous call tells you whether there were new onsets.
+	 */
+	public long getOnsetCount() {
+		return result.onsets;
+	}
+
+	/**
+	 * Returns the position, in samples since the analyzer started, of the last detected onset, or -1 if there was none.
+	 */
+	public long getLastOnsetPosition() {
+		return result.lastOnset;
+	}
+
+	/**
+	 * Returns the number of FFT frames that have been analyzed so far.
+	 */
+	public long getFrameCount() {
+		return result.frames;
+	}
+
+}
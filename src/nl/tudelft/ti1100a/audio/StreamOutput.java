@@ -0,0 +1,424 @@
+package nl.tudelft.ti1100a.audio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import ddf.minim.Minim;
+
+/**
+ * A StreamOutput plays a {@link LoopMixer} without a sound card, by streaming its mix as raw PCM to a named pipe or a socket.
+ *
+ * The mix is rendered on its own thread, paced by the system clock at the sample rate of the mixer, exactly as an audio output would.
+ * Every buffer is encoded as interleaved, little-endian, signed 16 or 24 bit stereo PCM into a direct {@link ByteBuffer},
+ * and queued for a second thread that writes it to a {@link WritableByteChannel}. Sockets are written without blocking.
+ *
+ * The queue holds a few buffers (see {@link #setBufferCount(int)}), which bounds the latency.
+ * If the consumer doesn't keep up and the queue is full, whole buffers are dropped and counted (see {@link #getDroppedFrames()}),
+ * so the mix keeps running in time. If rendering itself falls behind by more than the queue,
+ * the clock skips ahead instead of catching up in a burst, which is counted as an underrun (see {@link #getUnderrunCount()}).
+ *
+ * The LoopMixer must not have an audio output of its own (see {@link LoopMixer#LoopMixer(Minim, Rhythm, int)}).
+ * If its {@link Rhythm} is a {@link ClickTrack} without an audio output, the ClickTrack is driven by the StreamOutput as well.
+ *
+ * Example, streaming to a named pipe that is read by another program:
+ *
+ * <pre>
+ * ClickTrack clickTrack = new ClickTrack(44100, 88200, 4);
+ * LoopMixer mixer = new LoopMixer(minim, clickTrack, 512);
+ * StreamOutput output = StreamOutput.openPipe(mixer, new File("/tmp/mix.pcm"));
+ * output.start();
+ * clickTrack.start();
+ * </pre>
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see DiskRecorder
+ */
+public class StreamOutput implements Runnable {
+
+	// How long to wait, in nanoseconds, before writing again to a channel that took nothing and can't tell when it's ready.
+	private static final long BACKOFF = 1000000L;
+
+	private final LoopMixer mixer;
+	private final ClickTrack clickTrack;
+	private final WritableByteChannel channel;
+	private final float sampleRate;
+	private final int bufferSize;
+
+	private int bitDepth;
+	private int bufferCount;
+
+	private final float[] left;
+	private final float[] right;
+	private final float[] click;
+	private short[] shorts;
+	private byte[] packed;
+	private ByteBuffer[] queue;
+	private ShortBuffer[] views;
+	private Selector selector;
+
+	// The queue is written by the render thread and read by the writer thread.
+	private volatile long head;
+	private volatile long tail;
+
+	private volatile long renderedFrames;
+	private volatile long streamedFrames;
+	private volatile long droppedFrames;
+	private volatile int underruns;
+	private volatile IOException error;
+	private volatile boolean running;
+	private Thread thread;
+	private Thread writer;
+
+	/**
+	 * Creates a new StreamOutput that writes to a channel.
+	 *
+	 * If the channel is a {@link SelectableChannel} (such as a {@link SocketChannel}), it is switched to non-blocking mode.
+	 *
+	 * @param mixer The LoopMixer to play. It must not have an audio output.
+	 * @param channel The channel to write the PCM to.
+	 */
+	public StreamOutput(LoopMixer mixer, WritableByteChannel channel) {
+		if (mixer.hasOutput()) throw new IllegalArgumentException("The LoopMixer already has an audio output");
+		this.mixer = mixer;
+		this.channel = channel;
+		this.sampleRate = mixer.sampleRate();
+		this.bufferSize = mixer.bufferSize();
+		Rhythm rhythm = mixer.rhythm;
+		clickTrack = rhythm instanceof ClickTrack && !((ClickTrack) rhythm).hasOutput() ? (ClickTrack) rhythm : null;
+		bitDepth = 16;
+		bufferCount = 4;
+		left = new float[bufferSize];
+		right = new float[bufferSize];
+		click = new float[bufferSize];
+	}
+
+	/**
+	 * Creates a new StreamOutput that writes to a named pipe (FIFO) or file.
+	 *
+	 * Opening a named pipe waits until another program opens it for reading.
+	 *
+	 * @param mixer The LoopMixer to play. It must not have an audio output.
+	 * @param pipe The named pipe.
+	 * @throws IOException If the pipe could not be opened.
+	 */
+	public static StreamOutput openPipe(LoopMixer mixer, File pipe) throws IOException {
+		return new StreamOutput(mixer, new FileOutputStream(pipe).getChannel());
+	}
+
+	/**
+	 * Creates a new StreamOutput that writes to a TCP connection.
+	 *
+	 * @param mixer The LoopMixer to play. It must not have an audio output.
+	 * @param host The host to connect to.
+	 * @param port The port to connect to.
+	 * @throws IOException If the connection could not be made.
+	 */
+	public static StreamOutput connect(LoopMixer mixer, String host, int port) throws IOException {
+		SocketChannel socket = SocketChannel.open(new InetSocketAddress(host, port));
+		socket.socket().setTcpNoDelay(true);
+		return new StreamOutput(mixer, socket);
+	}
+
+	/**
+	 * Changes the number of bits per sample. Only has effect on the next call to {@link #start()}.
+	 *
+	 * @param bitDepth 16 or 24. (16 by default.)
+	 */
+	public void setBitDepth(int bitDepth) {
+		if (bitDepth != 16 && bitDepth != 24) throw new IllegalArgumentException("Bit depth must be 16 or 24");
+		this.bitDepth = bitDepth;
+	}
+
+	/**
+	 * Returns the number of bits per sample.
+	 */
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	/**
+	 * Changes the number of buffers that can wait for the consumer before buffers are dropped. Only has effect on the next call to {@link #start()}.
+	 *
+	 * @param buffers The number of buffers. (4 by default.)
+	 */
+	public void setBufferCount(int buffers) {
+		if (buffers < 1) throw new IllegalArgumentException("There must be at least one buffer");
+		bufferCount = buffers;
+	}
+
+	/**
+	 * Returns the number of buffers that can wait for the consumer.
+	 */
+	public int getBufferCount() {
+		return bufferCount;
+	}
+
+	/**
+	 * Returns the maximum time, in seconds, that audio waits for the consumer before it's written.
+	 */
+	public float getLatency() {
+		return bufferCount * bufferSize / sampleRate;
+	}
+
+	/**
+	 * Starts streaming on two new (daemon) threads: one that renders, and one that writes.
+	 *
+	 * If the output is already running, nothing happens.
+	 *
+	 * @throws IOException If the channel could not be switched to non-blocking mode.
+	 */
+	public synchronized void start() throws IOException {
+		if (running) return;
+		if (thread != null) stop();
+		if (channel instanceof SelectableChannel && selector == null){
+			SelectableChannel c = (SelectableChannel) channel;
+			c.configureBlocking(false);
+			selector = Selector.open();
+			c.register(selector, SelectionKey.OP_WRITE);
+		}
+		int bytes = bufferSize * 2 * bitDepth / 8;
+		queue = new ByteBuffer[bufferCount];
+		views = new ShortBuffer[bufferCount];
+		for(int i = 0; i < bufferCount; i++){
+			queue[i] = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			views[i] = queue[i].asShortBuffer();
+		}
+		shorts = bitDepth == 16 ? new short[bufferSize * 2] : null;
+		packed = bitDepth == 24 ? new byte[bytes] : null;
+		head = tail = 0;
+		renderedFrames = streamedFrames = droppedFrames = 0;
+		underruns = 0;
+		error = null;
+		running = true;
+		writer = new Thread(new Runnable() {
+			@Override public void run() {
+				write();
+			}
+		}, "StreamOutput writer");
+		writer.setDaemon(true);
+		thread = new Thread(this, "StreamOutput");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MAX_PRIORITY);
+		writer.start();
+		thread.start();
+	}
+
+	/**
+	 * Stops streaming, and waits until the queued audio is written.
+	 *
+	 * If the consumer doesn't take the queued audio within a second, the channel is closed.
+	 */
+	public synchronized void stop() {
+		if (thread == null) return;
+		running = false;
+		boolean interrupted = join(thread, 0);
+		interrupted |= join(writer, 1000 + (long) (getLatency() * 1000));
+		if (writer.isAlive()){
+			close(channel);
+			interrupted |= join(writer, 0);
+		}
+		thread = null;
+		writer = null;
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Stops streaming, and closes the channel.
+	 */
+	public synchronized void close() {
+		stop();
+		close(channel);
+		if (selector != null){
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Nothing left to do with it.
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the output is currently running or not.
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Returns the number of samples (per channel) that were rendered so far, including the ones that were dropped.
+	 */
+	public long getRenderedFrames() {
+		return renderedFrames;
+	}
+
+	/**
+	 * Returns the number of samples (per channel) that were written to the channel so far.
+	 */
+	public long getStreamedFrames() {
+		return streamedFrames;
+	}
+
+	/**
+	 * Returns the number of samples (per channel) that were dropped because the consumer couldn't keep up.
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * Returns the number of times rendering fell so far behind that the clock had to skip ahead.
+	 */
+	public int getUnderrunCount() {
+		return underruns;
+	}
+
+	/**
+	 * Returns the error that stopped the output, or null if there was none.
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	/** Don't call this method directly, use {@link #start()}. */
+	@Override public void run() {
+		double nanosPerFrame = 1e9 / sampleRate;
+		long maxLag = (long) (bufferCount * bufferSize * nanosPerFrame);
+		long start = System.nanoTime();
+		long frames = 0;
+		while (running){
+			long due = start + (long) (frames * nanosPerFrame);
+			long now = System.nanoTime();
+			if (now < due){
+				LockSupport.parkNanos(due - now);
+				continue;
+			}
+			if (now - due > maxLag){
+				// Don't render a burst of buffers to catch up; continue from now.
+				start = now - (long) (frames * nanosPerFrame);
+				underruns++;
+			}
+			if (clickTrack != null) clickTrack.clock.generate(click);
+			mixer.render(left, right);
+			frames += bufferSize;
+			renderedFrames = frames;
+			long h = head;
+			if (h - tail == queue.length){
+				droppedFrames += bufferSize;
+				continue;
+			}
+			encode(queue[(int) (h % queue.length)], views[(int) (h % queue.length)]);
+			head = h + 1;
+			LockSupport.unpark(writer);
+		}
+	}
+
+	private void encode(ByteBuffer bytes, ShortBuffer view) {
+		bytes.clear();
+		if (bitDepth == 16){
+			for(int i = 0; i < bufferSize; i++){
+				shorts[2*i    ] = SampleBuffer.toShort(left[i]);
+				shorts[2*i + 1] = SampleBuffer.toShort(right[i]);
+			}
+			view.clear();
+			view.put(shorts);
+			// Writing through the view doesn't move the position of the bytes.
+			bytes.position(shorts.length * 2);
+		} else {
+			for(int i = 0, p = 0; i < bufferSize; i++){
+				int l = to24(left[i]);
+				int r = to24(right[i]);
+				packed[p++] = (byte) l;
+				packed[p++] = (byte) (l >> 8);
+				packed[p++] = (byte) (l >> 16);
+				packed[p++] = (byte) r;
+				packed[p++] = (byte) (r >> 8);
+				packed[p++] = (byte) (r >> 16);
+			}
+			bytes.put(packed);
+		}
+		bytes.flip();
+	}
+
+	/**
+	 * Converts a sample to 24 bits, scaled by 8388608 like the 16-bit samples are scaled by 32768, and clipped.
+	 */
+	private static int to24(float x) {
+		int v = Math.round(x * 8388608);
+		return v > 8388607 ? 8388607 : v < -8388608 ? -8388608 : v;
+	}
+
+	/**
+	 * Writes the queued buffers to the channel, until the output is stopped and the queue is empty.
+	 */
+	private void write() {
+		long wait = Math.max(1, (long) (bufferSize / sampleRate * 1000));
+		try {
+			while (true){
+				long t = tail;
+				if (t == head){
+					if (!running && !thread.isAlive()) break;
+					LockSupport.parkNanos(wait * 1000000L);
+					continue;
+				}
+				ByteBuffer bytes = queue[(int) (t % queue.length)];
+				while (bytes.hasRemaining()){
+					if (channel.write(bytes) == 0){
+						if (selector != null){
+							selector.select(wait);
+							selector.selectedKeys().clear();
+						} else {
+							// Nothing to wait for, so just try again a bit later instead of spinning.
+							LockSupport.parkNanos(BACKOFF);
+						}
+					}
+				}
+				tail = t + 1;
+				streamedFrames += bufferSize;
+			}
+		} catch (ClosedChannelException e) {
+			// Closed by stop(), because the consumer didn't take the rest.
+			if (running) error = e;
+			running = false;
+		} catch (IOException e) {
+			error = e;
+			running = false;
+		}
+	}
+
+	private static boolean join(Thread thread, long millis) {
+		boolean interrupted = false;
+		long end = System.currentTimeMillis() + millis;
+		while (thread.isAlive()){
+			long left = end - System.currentTimeMillis();
+			if (millis > 0 && left <= 0) break;
+			try {
+				thread.join(millis > 0 ? left : 0);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		return interrupted;
+	}
+
+	private static void close(Channel c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+			// Nothing left to do with it.
+		}
+	}
+
+}
@@ -0,0 +1,373 @@
+package nl.tudelft.ti1100a.audio;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import ddf.minim.AudioEffect;
+import ddf.minim.AudioListener;
+
+/**
+ * A headless stress test that finds how many loops a {@link LoopMixer} can sustain.
+ *
+ * It renders synthetic loops without any audio device, as fast as possible, and measures the render time of every buffer
+ * against the real-time deadline (the duration of one buffer). A run holds if at least 99.9% of the buffers
+ * are rendered within that deadline. A number of loops is sustained if most of a few runs (trials) hold, so a single
+ * pause of the garbage collector or the compiler doesn't decide the result. For every combination of effects per loop,
+ * listeners per loop and tempo changes per second, the number of loops is increased until it is no longer sustained.
+ * The spread of the 99.9th percentile over the trials is reported with the result.
+ *
+ * All audio and all load is generated from a fixed seed, so results of different machines or releases can be compared.
+ *
+ * Usage: {@code java nl.tudelft.ti1100a.audio.StressTest [option=value ...]}, with the options:
+ * <ul>
+ * <li>{@code sampleRate} (44100)</li>
+ * <li>{@code bufferSize} (1024)</li>
+ * <li>{@code buffers}: the number of buffers to measure per run (5000)</li>
+ * <li>{@code trials}: the number of runs per number of loops, of which most have to hold (3)</li>
+ * <li>{@code effects}: comma separated numbers of effects per loop (0,1,4)</li>
+ * <li>{@code listeners}: comma separated numbers of listeners per loop (0,1)</li>
+ * <li>{@code tempo}: comma separated numbers of tempo changes per second (0,20)</li>
+ * <li>{@code interpolation}: the {@link Interpolation} of the loops (NEAREST)</li>
+ * <li>{@code format}: the {@link SampleFormat} of the loops (FLOAT)</li>
+ * <li>{@code offHeap}: whether to store the samples off the heap (false)</li>
+ * <li>{@code maxLoops} (4096)</li>
+ * <li>{@code seed} (1)</li>
+ * </ul>
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ */
+public class StressTest {
+
+	private static final int SOURCES = 16;
+	private static final int WARMUP = 200;
+	private static final int WARMUP_RUNS = 3;
+	private static final double QUANTILE = 0.999;
+
+	/**
+	 * A simple stateful low-pass filter, to have effects with realistic costs.
+	 */
+	private static class LowPass implements AudioEffect {
+		private final float a;
+		private float l, r;
+		LowPass(float a) { this.a = a; }
+		@Override public void process(float[] data) {
+			for(int i = 0; i < data.length; i++) data[i] = l += a * (data[i] - l);
+		}
+		@Override public void process(float[] left, float[] right) {
+			for(int i = 0; i < left.length; i++){
+				left[i]  = l += a * (left[i]  - l);
+				right[i] = r += a * (right[i] - r);
+			}
+		}
+	}
+
+	/**
+	 * A listener that computes the level of everything it hears, like a level meter would.
+	 */
+	private static class Meter implements AudioListener {
+		float level;
+		@Override public void samples(float[] data) {
+			float sum = 0;
+			for(float x : data) sum += x * x;
+			level = (float) Math.sqrt(sum / data.length);
+		}
+		@Override public void samples(float[] left, float[] right) {
+			float sum = 0;
+			for(int i = 0; i < left.length; i++) sum += left[i] * left[i] + right[i] * right[i];
+			level = (float) Math.sqrt(sum / (2 * left.length));
+		}
+	}
+
+	private final int sampleRate;
+	private final int bufferSize;
+	private final int buffers;
+	private final long seed;
+	private final int measureDuration;
+	private final float[][] sources;
+	private final long[] times;
+	private SampleFormat format = SampleFormat.FLOAT;
+	private boolean offHeap = false;
+	private Interpolation interpolation = Interpolation.NEAREST;
+	private int trials = 3;
+
+	/**
+	 * Creates a new StressTest.
+	 *
+	 * @param sampleRate The sample rate.
+	 * @param bufferSize The number of samples per buffer.
+	 * @param buffers The number of buffers to measure per run.
+	 * @param seed The seed for all generated audio and load.
+	 */
+	public StressTest(int sampleRate, int bufferSize, int buffers, long seed) {
+		this.sampleRate = sampleRate;
+		this.bufferSize = bufferSize;
+		this.buffers = buffers;
+		this.seed = seed;
+		this.measureDuration = 2 * sampleRate;
+		this.times = new long[buffers];
+
+		sources = new float[SOURCES * 2][];
+		for(int s = 0; s < SOURCES; s++){
+			Random random = new Random(seed + s);
+			int length = (int) (measureDuration * (0.9f + 0.2f * random.nextFloat()));
+			float[] left = new float[length];
+			float[] right = new float[length];
+			float frequency = 40 + random.nextFloat() * 400;
+			int beat = length / 4;
+			for(int i = 0; i < length; i++){
+				float envelope = (float) Math.exp(-8.0 * (i % beat) / beat);
+				float tone = (float) Math.sin(2 * Math.PI * frequency * i / sampleRate);
+				left[i]  = 0.5f * tone * envelope + 0.1f * (random.nextFloat() - 0.5f);
+				right[i] = 0.5f * tone * envelope + 0.1f * (random.nextFloat() - 0.5f);
+			}
+			sources[2*s] = left;
+			sources[2*s+1] = right;
+		}
+	}
+
+	/**
+	 * Changes the format in which the samples of the loops are kept in memory.
+	 *
+	 * @param format The format of the samples.
+	 * @param offHeap Whether to store the samples outside of the Java heap.
+	 * @see LoopMixer#setSampleFormat(SampleFormat, boolean)
+	 */
+	public void setSampleFormat(SampleFormat format, boolean offHeap) {
+		this.format = format;
+		this.offHeap = offHeap;
+	}
+
+	/**
+	 * Changes the interpolation of the loops.
+	 *
+	 * @param interpolation The interpolation of the loops.
+	 */
+	public void setInterpolation(Interpolation interpolation) {
+		this.interpolation = interpolation;
+	}
+
+	/**
+	 * Changes the number of runs per number of loops.
+	 *
+	 * @param trials The number of runs, of which more than half have to hold.
+	 */
+	public void setTrials(int trials) {
+		if (trials < 1) throw new IllegalArgumentException("At least one trial is needed");
+		this.trials = trials;
+	}
+
+	/**
+	 * Renders a few runs that are not measured, so the measured runs don't include the compilation of the rendering code.
+	 */
+	public void warmUp() {
+		for(int i = 0; i < WARMUP_RUNS; i++) run(8, 1, 1, 20);
+	}
+
+	/**
+	 * Returns the real-time deadline of one buffer, in nanoseconds.
+	 */
+	public long getBudget() {
+		return (long) (bufferSize * 1e9 / sampleRate);
+	}
+
+	/**
+	 * Renders one run with the specified load.
+	 *
+	 * @param loops The number of loops.
+	 * @param effects The number of effects per loop.
+	 * @param listeners The number of listeners per loop.
+	 * @param tempoChanges The number of tempo changes per second.
+	 * @return The render times of all measured buffers, in nanoseconds, sorted.
+	 */
+	public long[] run(int loops, int effects, int listeners, float tempoChanges) {
+		Random random = new Random(seed);
+		ClickTrack clickTrack = new ClickTrack(sampleRate, measureDuration, 4);
+		LoopMixer mixer = new LoopMixer(clickTrack, bufferSize);
+		mixer.setSampleFormat(format, offHeap);
+		for(int i = 0; i < loops; i++){
+			int s = random.nextInt(SOURCES);
+			LoopMixer.Loop loop = mixer.new Loop(sources[2*s], sources[2*s+1], sampleRate, 1 + random.nextInt(2), 0);
+			for(int e = 0; e < effects; e++) loop.addEffect(new LowPass(0.05f + 0.9f * random.nextFloat()));
+			for(int l = 0; l < listeners; l++) loop.addListener(new Meter());
+			loop.setVolume(1.0f / loops);
+			loop.setInterpolation(interpolation);
+			loop.start();
+		}
+		clickTrack.start();
+
+		float[] click = new float[bufferSize];
+		float[] left = new float[bufferSize];
+		float[] right = new float[bufferSize];
+		int tempoInterval = tempoChanges > 0 ? Math.max(1, Math.round(sampleRate / (float) bufferSize / tempoChanges)) : 0;
+		boolean faster = true;
+
+		System.gc();
+		for(int b = -WARMUP; b < buffers; b++){
+			if (tempoInterval > 0 && b % tempoInterval == 0){
+				clickTrack.changeTempo(faster ? 1.01f : 1 / 1.01f);
+				faster = !faster;
+			}
+			long start = System.nanoTime();
+			clickTrack.clock.generate(click);
+			mixer.render(left, right);
+			long time = System.nanoTime() - start;
+			if (b >= 0) times[b] = time;
+		}
+
+		mixer.close();
+		clickTrack.close();
+
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Returns whether a run, as returned by {@link #run(int, int, int, float)}, kept up with the deadline often enough.
+	 *
+	 * @param times The sorted render times.
+	 */
+	public boolean holds(long[] times) {
+		return quantile(times) <= getBudget();
+	}
+
+	private static long quantile(long[] sorted) {
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(QUANTILE * sorted.length) - 1)];
+	}
+
+	/**
+	 * Returns whether most of the trials with the specified load hold. Stops as soon as the majority is known.
+	 */
+	private boolean sustains(int loops, int effects, int listeners, float tempoChanges) {
+		int needed = trials / 2 + 1;
+		int held = 0;
+		int missed = 0;
+		while (held < needed && missed < needed){
+			if (holds(run(loops, effects, listeners, tempoChanges))) held++; else missed++;
+		}
+		return held >= needed;
+	}
+
+	/**
+	 * Returns the 99.9th percentile of the render time of every trial with the specified load, in nanoseconds, sorted.
+	 *
+	 * @param loops The number of loops.
+	 * @param effects The number of effects per loop.
+	 * @param listeners The number of listeners per loop.
+	 * @param tempoChanges The number of tempo changes per second.
+	 */
+	public long[] measure(int loops, int effects, int listeners, float tempoChanges) {
+		long[] q = new long[trials];
+		for(int i = 0; i < trials; i++) q[i] = quantile(run(loops, effects, listeners, tempoChanges));
+		Arrays.sort(q);
+		return q;
+	}
+
+	/**
+	 * Finds the maximum number of loops that can be sustained with the specified load.
+	 *
+	 * @param effects The number of effects per loop.
+	 * @param listeners The number of listeners per loop.
+	 * @param tempoChanges The number of tempo changes per second.
+	 * @param maxLoops The maximum number of loops to try.
+	 * @return The maximum number of loops, or 0 if not even one loop can be sustained.
+	 */
+	public int findMaxLoops(int effects, int listeners, float tempoChanges, int maxLoops) {
+		int good = 0;
+		int bad = maxLoops + 1;
+		int n = 1;
+		while (n < bad && sustains(n, effects, listeners, tempoChanges)){
+			good = n;
+			n = Math.min(n * 2, bad);
+		}
+		if (n < bad) bad = n;
+		while (bad - good > 1){
+			int mid = (good + bad) >>> 1;
+			if (sustains(mid, effects, listeners, tempoChanges)) good = mid; else bad = mid;
+		}
+		return good;
+	}
+
+	private static int[] parseInts(String s) {
+		String[] parts = s.split(",");
+		int[] r = new int[parts.length];
+		for(int i = 0; i < parts.length; i++) r[i] = Integer.parseInt(parts[i].trim());
+		return r;
+	}
+
+	private static float[] parseFloats(String s) {
+		String[] parts = s.split(",");
+		float[] r = new float[parts.length];
+		for(int i = 0; i < parts.length; i++) r[i] = Float.parseFloat(parts[i].trim());
+		return r;
+	}
+
+	/**
+	 * Runs the stress test and prints the results.
+	 *
+	 * @param args The options, see {@link StressTest}.
+	 */
+	public static void main(String[] args) {
+		int sampleRate = 44100;
+		int bufferSize = 1024;
+		int buffers = 5000;
+		int trials = 3;
+		int maxLoops = 4096;
+		long seed = 1;
+		SampleFormat format = SampleFormat.FLOAT;
+		boolean offHeap = false;
+		Interpolation interpolation = Interpolation.NEAREST;
+		int[] effects = { 0, 1, 4 };
+		int[] listeners = { 0, 1 };
+		float[] tempo = { 0, 20 };
+
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if (eq < 0) throw new IllegalArgumentException("Expected option=value, got: " + arg);
+			String key = arg.substring(0, eq);
+			String value = arg.substring(eq + 1);
+			if      (key.equals("sampleRate")) sampleRate = Integer.parseInt(value);
+			else if (key.equals("bufferSize")) bufferSize = Integer.parseInt(value);
+			else if (key.equals("buffers"))    buffers = Integer.parseInt(value);
+			else if (key.equals("trials"))     trials = Integer.parseInt(value);
+			else if (key.equals("maxLoops"))   maxLoops = Integer.parseInt(value);
+			else if (key.equals("seed"))       seed = Long.parseLong(value);
+			else if (key.equals("format"))     format = SampleFormat.valueOf(value);
+			else if (key.equals("offHeap"))    offHeap = Boolean.parseBoolean(value);
+			else if (key.equals("interpolation")) interpolation = Interpolation.valueOf(value);
+			else if (key.equals("effects"))    effects = parseInts(value);
+			else if (key.equals("listeners"))  listeners = parseInts(value);
+			else if (key.equals("tempo"))      tempo = parseFloats(value);
+			else throw new IllegalArgumentException("Unknown option: " + key);
+		}
+
+		StressTest test = new StressTest(sampleRate, bufferSize, buffers, seed);
+		test.setSampleFormat(format, offHeap);
+		test.setInterpolation(interpolation);
+		test.setTrials(trials);
+
+		System.out.println("java " + System.getProperty("java.version") + ", " + System.getProperty("os.name") + " " + System.getProperty("os.arch")
+			+ ", " + Runtime.getRuntime().availableProcessors() + " cpus");
+		System.out.println("sampleRate=" + sampleRate + " bufferSize=" + bufferSize + " buffers=" + buffers + " trials=" + trials + " seed=" + seed
+			 + " interpolation=" + interpolation + " format=" + format + (offHeap ? " (off heap)" : "")
+			+ " budget=" + test.getBudget() / 1000 + "us");
+
+		test.warmUp();
+
+		System.out.println("effects\tlisteners\ttempo/s\tmax loops\tp99.9 (us): median (min-max)");
+		for(int e : effects){
+			for(int l : listeners){
+				for(float t : tempo){
+					int n = test.findMaxLoops(e, l, t, maxLoops);
+					String p = "-";
+					if (n > 0){
+						long[] q = test.measure(n, e, l, t);
+						p = q[q.length / 2] / 1000 + " (" + q[0] / 1000 + "-" + q[q.length - 1] / 1000 + ")";
+					}
+					System.out.println(e + "\t" + l + "\t\t" + t + "\t" + n + "\t\t" + p);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+package nl.tudelft.ti1100a.audio;
+
+import java.util.Arrays;
+
+/**
+ * A TempoAutomation describes how the tempo changes over time, as a series of breakpoints connected by curves.
+ *
+ * It is played by a {@link ClickTrack} using {@link ClickTrack#automate(TempoAutomation)}, which evaluates it
+ * while it generates the audio, instead of changing the tempo step by step from the application.
+ *
+ * Example, an accelerando from 120 to 140 BPM in 8 seconds, followed by a drop to 70 BPM:
+ *
+ * <pre>
+ * new TempoAutomation(120).rampTo(140, 8, TempoAutomation.Curve.EXPONENTIAL).rampTo(70, 0, TempoAutomation.Curve.STEP);
+ * </pre>
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ */
+public class TempoAutomation {
+
+	/**
+	 * The shape of the tempo change between two breakpoints.
+	 */
+	public enum Curve {
+
+		/**
+		 * Keep the tempo of the previous breakpoint, and jump to the next one at its time.
+		 */
+		STEP,
+
+		/**
+		 * Change the tempo linearly.
+		 */
+		LINEAR,
+
+		/**
+		 * Change the tempo exponentially, by the same factor every second. This sounds like an even change in tempo.
+		 */
+		EXPONENTIAL
+
+	}
+
+	private float[] times;
+	private float[] bpms;
+	private Curve[] curves;
+	private int count;
+
+	/**
+	 * Creates a new TempoAutomation.
+	 *
+	 * @param bpm The tempo, in beats per minute, at the start.
+	 */
+	public TempoAutomation(float bpm) {
+		times = new float[4];
+		bpms = new float[4];
+		curves = new Curve[4];
+		times[0] = 0;
+		bpms[0] = bpm;
+		curves[0] = Curve.STEP;
+		count = 1;
+	}
+
+	/**
+	 * Creates a linear ramp.
+	 *
+	 * @param from The tempo at the start, in beats per minute.
+	 * @param to The tempo at the end, in beats per minute.
+	 * @param duration The duration of the ramp, in seconds.
+	 */
+	public static TempoAutomation linearRamp(float from, float to, float duration) {
+		return new TempoAutomation(from).rampTo(to, duration, Curve.LINEAR);
+	}
+
+	/**
+	 * Creates an exponential ramp.
+	 *
+	 * @param from The tempo at the start, in beats per minute.
+	 * @param to The tempo at the end, in beats per minute.
+	 * @param duration The duration of the ramp, in seconds.
+	 */
+	public static TempoAutomation exponentialRamp(float from, float to, float duration) {
+		return new TempoAutomation(from).rampTo(to, duration, Curve.EXPONENTIAL);
+	}
+
+	/**
+	 * Adds a breakpoint after the last one.
+	 *
+	 * @param bpm The tempo at the new breakpoint, in beats per minute.
+	 * @param duration The time, in seconds, between the last breakpoint and the new one.
+	 * @param curve The way the tempo changes towards the new breakpoint.
+	 * @return This TempoAutomation.
+	 */
+	public TempoAutomation rampTo(float bpm, float duration, Curve curve) {
+		if (bpm <= 0) throw new IllegalArgumentException("Tempo must be positive");
+		if (duration < 0) throw new IllegalArgumentException("Duration must not be negative");
+		if (count == times.length){
+			times = Arrays.copyOf(times, count * 2);
+			bpms = Arrays.copyOf(bpms, count * 2);
+			curves = Arrays.copyOf(curves, count * 2);
+		}
+		times[count] = times[count - 1] + duration;
+		bpms[count] = bpm;
+		curves[count] = curve;
+		count++;
+		return this;
+	}
+
+	/**
+	 * Keeps the tempo of the last breakpoint for a while.
+	 *
+	 * @param duration The time, in seconds.
+	 * @return This TempoAutomation.
+	 */
+	public TempoAutomation hold(float duration) {
+		return rampTo(bpms[count - 1], duration, Curve.STEP);
+	}
+
+	/**
+	 * Returns the time, in seconds, of the last breakpoint.
+	 */
+	public float getDuration() {
+		return times[count - 1];
+	}
+
+	/**
+	 * Returns the tempo, in beats per minute, at the specified time.
+	 *
+	 * @param time The time, in seconds since the start.
+	 */
+	public float getBpm(float time) {
+		if (time <= 0) return bpms[0];
+		for(int i = 1; i < count; i++){
+			if (time < times[i]){
+				float from = bpms[i - 1];
+				float to = bpms[i];
+				float t = (time - times[i - 1]) / (times[i] - times[i - 1]);
+				switch (curves[i]){
+				case LINEAR:      return from + (to - from) * t;
+				case EXPONENTIAL: return (float) (from * Math.pow(to / from, t));
+				default:          return from;
+				}
+			}
+		}
+		return bpms[count - 1];
+	}
+
+	/**
+	 * Returns the index of the last breakpoint at or before the specified time.
+	 *
+	 * @param time The time, in seconds since the start.
+	 */
+	int breakpointAt(float time) {
+		int i = 0;
+		while (i + 1 < count && times[i + 1] <= time) i++;
+		return i;
+	}
+
+	/**
+	 * Returns a copy that doesn't change when this one does.
+	 */
+	TempoAutomation copy() {
+		TempoAutomation c = new TempoAutomation(bpms[0]);
+		c.times = Arrays.copyOf(times, count);
+		c.bpms = Arrays.copyOf(bpms, count);
+		c.curves = Arrays.copyOf(curves, count);
+		c.count = count;
+		return c;
+	}
+
+}
@@ -0,0 +1,124 @@
+package nl.tudelft.ti1100a.audio;
+
+/**
+ * A consistent snapshot of the transport state of a {@link ClickTrack} or a {@link LoopMixer.Loop}.
+ *
+ * The audio thread publishes the state once per buffer. All values in a snapshot come from the same buffer,
+ * so, unlike the separate getters, they can safely be combined.
+ * A snapshot can be reused for every read, so polling it (for example, every frame of a user interface) doesn't allocate anything:
+ *
+ * <pre>
+ * TransportSnapshot t = new TransportSnapshot();
+ * ...
+ * loop.getTransport(t);
+ * int position = t.getExactPosition(System.nanoTime());
+ * </pre>
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ * @see ClickTrack#getTransport(TransportSnapshot)
+ * @see LoopMixer.Loop#getTransport(TransportSnapshot)
+ */
+public class TransportSnapshot {
+
+	long frame;
+	long time;
+	boolean playing;
+	int position;
+	int duration;
+	int measureDuration;
+	int beatsPerMeasure;
+	float sampleRate;
+
+	/**
+	 * Returns the number of samples that were generated before the buffer of this snapshot.
+	 */
+	public long getFrame() {
+		return frame;
+	}
+
+	/**
+	 * Returns the time, in nanoseconds as given by {@link System#nanoTime()}, at which the buffer of this snapshot was started.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Returns whether it was playing.
+	 */
+	public boolean isPlaying() {
+		return playing;
+	}
+
+	/**
+	 * Returns the position, in samples, at the start of the buffer.
+	 *
+	 * For a {@link ClickTrack}, this is the position in the measure. For a loop, this is the position in the loop.
+	 */
+	public int getExactPosition() {
+		return position;
+	}
+
+	/**
+	 * Returns the position, in samples, at the specified time, assuming it kept playing at the same tempo since the start of the buffer.
+	 *
+	 * This can be used to move smoothly between the snapshots of two buffers.
+	 *
+	 * @param nanoTime The time, as given by {@link System#nanoTime()}.
+	 */
+	public int getExactPosition(long nanoTime) {
+		if (!playing || nanoTime <= time) return position;
+		long p = position + (long) ((nanoTime - time) * 1e-9 * sampleRate);
+		return (int) (p % duration);
+	}
+
+	/**
+	 * Returns the position, in seconds, at the start of the buffer.
+	 */
+	public float getPosition() {
+		return position / sampleRate;
+	}
+
+	/**
+	 * Returns the duration, in samples, of one measure for a {@link ClickTrack}, or of one loop for a loop.
+	 */
+	public int getExactDuration() {
+		return duration;
+	}
+
+	/**
+	 * Returns the duration, in samples, of one measure.
+	 */
+	public int getExactMeasureDuration() {
+		return measureDuration;
+	}
+
+	/**
+	 * Returns the number of beats per measure.
+	 */
+	public int getBeatsPerMeasure() {
+		return beatsPerMeasure;
+	}
+
+	/**
+	 * Returns the sample rate.
+	 */
+	public float getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Returns which measure was playing at the start of the buffer. This is always 0 for a {@link ClickTrack}.
+	 */
+	public int getCurrentMeasure() {
+		return position / measureDuration;
+	}
+
+	/**
+	 * Returns which beat of the measure was playing at the start of the buffer.
+	 */
+	public int getCurrentBeat() {
+		return Math.min(position % measureDuration / (measureDuration / beatsPerMeasure), beatsPerMeasure - 1);
+	}
+
+}
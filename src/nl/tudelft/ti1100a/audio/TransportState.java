@@ -0,0 +1,67 @@
+package nl.tudelft.ti1100a.audio;
+
+/**
+ * The transport state published by the audio thread, protected by a sequence lock.
+ *
+ * There must only be one writer at a time (the audio thread, or the constructor before that).
+ * Readers never block the writer: they retry when the state changed while they were reading it.
+ *
+ * @author Mara Bos (m-ou.se@m-ou.se)
+ */
+final class TransportState {
+
+	// Odd while the writer is busy. All fields are volatile, so the reads can't be reordered around the sequence checks.
+	private volatile int sequence;
+
+	private volatile long frame;
+	private volatile long time;
+	private volatile boolean playing;
+	private volatile int position;
+	private volatile int duration;
+	private volatile int measureDuration;
+	private volatile int beatsPerMeasure;
+
+	/**
+	 * Publishes a new state. Only called by the single writer.
+	 */
+	void publish(long frame, long time, boolean playing, int position, int duration, int measureDuration, int beatsPerMeasure) {
+		int s = sequence;
+		sequence = s + 1;
+		this.frame = frame;
+		this.time = time;
+		this.playing = playing;
+		this.position = position;
+		this.duration = duration;
+		this.measureDuration = measureDuration;
+		this.beatsPerMeasure = beatsPerMeasure;
+		sequence = s + 2;
+	}
+
+	/**
+	 * Copies the latest state.
+	 *
+	 * @param into The snapshot to copy the state into.
+	 * @param sampleRate The sample rate to store in the snapshot.
+	 * @return The snapshot that was passed in.
+	 */
+	TransportSnapshot read(TransportSnapshot into, float sampleRate) {
+		int s;
+		do {
+			s = sequence;
+			while ((s & 1) != 0){
+				Thread.yield();
+				s = sequence;
+			}
+			into.frame = frame;
+			into.time = time;
+			into.playing = playing;
+			into.position = position;
+			into.duration = duration;
+			into.measureDuration = measureDuration;
+			into.beatsPerMeasure = beatsPerMeasure;
+		} while (sequence != s);
+		into.sampleRate = sampleRate;
+		return into;
+	}
+
+}